@@ -0,0 +1,77 @@
+package filemanager;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Single file copy through {@link FileCopier} against the 1 KB stream loop
+ * PasteWorker used before it. See {@link Fixtures} for running.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(1)
+public class CopyBenchmark {
+    @Param({ "1", "64", "512" })
+    public int megabytes;
+
+    private Path root;
+    private File source;
+    private File target;
+
+    @Setup(Level.Trial)
+    public void createFixture() throws IOException {
+        root = Fixtures.createTempDirectory("fm-copy");
+        source = Fixtures.randomFile(root, "source.bin", (long) megabytes << 20);
+        target = root.resolve("target.bin").toFile();
+    }
+
+    @TearDown(Level.Invocation)
+    public void deleteTarget() {
+        target.delete();
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteFixture() throws IOException {
+        Fixtures.delete(root);
+    }
+
+    @Benchmark
+    public long transferTo() throws IOException {
+        return FileCopier.copy(source, target, IoProgress.NONE);
+    }
+
+    @Benchmark
+    public long streamLoop() throws IOException {
+        long copied = 0;
+        try (FileInputStream fis = new FileInputStream(source); FileOutputStream fos = new FileOutputStream(target)) {
+            byte[] buffer = new byte[1024];
+            int length;
+            while ((length = fis.read(buffer)) > 0) {
+                fos.write(buffer, 0, length);
+                copied += length;
+            }
+        }
+        return copied;
+    }
+}
@@ -0,0 +1,151 @@
+package filemanager;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Random;
+
+/**
+ * Generated benchmark fixtures. Everything is derived from fixed seeds, so
+ * every run and every machine benchmarks the same bytes and the same names.
+ * Fixtures go below {@code -Dfilemanager.bench.dir}, by default the system
+ * temp directory; point it at the device to be measured.
+ *
+ * <pre>
+ * mvn -B package
+ * java -jar benchmarks/target/benchmarks.jar -rf json -rff baseline.json
+ * java -jar benchmarks/target/benchmarks.jar -rf json -rff candidate.json
+ * </pre>
+ *
+ * Compare the two result files, e.g. at jmh.morethan.io. A subset runs with
+ * a regex, e.g. {@code Copy}, or with {@code -p entries=100}.
+ */
+final class Fixtures {
+    static final long SEED = 42;
+
+    static final FileOperations.SizedProgress NO_PROGRESS = new FileOperations.SizedProgress() {
+        @Override
+        public void total(long bytes) {
+        }
+
+        @Override
+        public void advance(long bytes) {
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return false;
+        }
+    };
+
+    private static final String[] WORDS = { "file", "manager", "copy", "tree", "index", "directory", "zip",
+            "stream", "channel", "buffer", "entry", "name", "size", "last", "modified", "read", "write" };
+
+    private Fixtures() {
+    }
+
+    static Path createTempDirectory(String prefix) throws IOException {
+        Path base = Paths.get(System.getProperty("filemanager.bench.dir", System.getProperty("java.io.tmpdir")));
+        Files.createDirectories(base);
+        return Files.createTempDirectory(base, prefix);
+    }
+
+    /** A directory holding {@code entries} empty files. */
+    static Path flatDirectory(Path parent, int entries) throws IOException {
+        Path directory = Files.createDirectories(parent.resolve("flat-" + entries));
+        for (int i = 0; i < entries; i++) {
+            Files.createFile(directory.resolve(String.format("entry-%07d.txt", i)));
+        }
+        return directory;
+    }
+
+    /**
+     * A tree of {@code directories} directories with {@code filesPerDirectory}
+     * files each, of {@code fileSize} bytes of mixed content.
+     */
+    static Path tree(Path parent, int directories, int filesPerDirectory, int fileSize) throws IOException {
+        Random random = new Random(SEED);
+        Path root = Files.createDirectories(parent.resolve("tree"));
+        for (int d = 0; d < directories; d++) {
+            // two levels, so there are subtrees to work on in parallel
+            Path directory = Files.createDirectories(root.resolve("d" + (d % 16)).resolve("d" + d));
+            for (int f = 0; f < filesPerDirectory; f++) {
+                byte[] data = new byte[fileSize];
+                fillMixed(random, data, f);
+                Files.write(directory.resolve("f" + f + ".dat"), data);
+            }
+        }
+        return root;
+    }
+
+    /**
+     * A mix of what people zip: text, already compressed data under a
+     * compressed name, incompressible data under a neutral name and sparse
+     * data. {@code totalMegabytes} is split evenly over the kinds.
+     */
+    static Path mixedCorpus(Path parent, int totalMegabytes) throws IOException {
+        Random random = new Random(SEED);
+        Path root = Files.createDirectories(parent.resolve("corpus"));
+        long perKind = ((long) totalMegabytes << 20) / 4;
+        int fileSize = 1 << 20;
+        for (int i = 0; i * (long) fileSize < perKind; i++) {
+            byte[] data = new byte[fileSize];
+            text(random, data);
+            Files.write(root.resolve("log-" + i + ".txt"), data);
+            random.nextBytes(data);
+            Files.write(root.resolve("photo-" + i + ".jpg"), data);
+            random.nextBytes(data);
+            Files.write(root.resolve("blob-" + i + ".bin"), data);
+            data = new byte[fileSize];
+            for (int j = 0; j < data.length; j += 4096) {
+                data[j] = (byte) random.nextInt();
+            }
+            Files.write(root.resolve("sparse-" + i + ".img"), data);
+        }
+        return root;
+    }
+
+    /** A file of {@code size} seeded random bytes. */
+    static File randomFile(Path parent, String name, long size) throws IOException {
+        File file = parent.resolve(name).toFile();
+        byte[] block = new byte[1 << 20];
+        new Random(SEED).nextBytes(block);
+        try (RandomAccessFile out = new RandomAccessFile(file, "rw")) {
+            out.setLength(0);
+            for (long written = 0; written < size; written += block.length) {
+                out.write(block, 0, (int) Math.min(block.length, size - written));
+            }
+        }
+        return file;
+    }
+
+    static void delete(Path path) throws IOException {
+        if (path != null) {
+            new ParallelTreeDeleter().delete(path, IoProgress.NONE);
+        }
+    }
+
+    private static void fillMixed(Random random, byte[] data, int kind) {
+        if (kind % 2 == 0) {
+            text(random, data);
+        } else {
+            random.nextBytes(data);
+        }
+    }
+
+    private static void text(Random random, byte[] data) {
+        int i = 0;
+        while (i < data.length) {
+            String word = WORDS[random.nextInt(WORDS.length)];
+            for (int j = 0; j < word.length() && i < data.length; j++) {
+                data[i++] = (byte) word.charAt(j);
+            }
+            if (i < data.length) {
+                data[i++] = (byte) (random.nextInt(12) == 0 ? '\n' : ' ');
+            }
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package filemanager;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Listing a flat directory, with and without reading the attributes, and
+ * the attribute fetch on its own, against the per {@link File} calls the
+ * table used to make. See {@link Fixtures} for running.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = { "-Xms2g", "-Xmx2g" })
+public class ListingBenchmark {
+    @Param({ "100", "100000", "1000000" })
+    public int entries;
+
+    private Path root;
+    private File directory;
+    private File[] files;
+    // rejects every name, so the listing skips the attributes
+    private final FileNameFilter noMatch = FileNameFilter.compile("*.none");
+
+    @Setup(Level.Trial)
+    public void createFixture() throws IOException {
+        root = Fixtures.createTempDirectory("fm-list");
+        directory = Fixtures.flatDirectory(root, entries).toFile();
+        files = directory.listFiles();
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteFixture() throws IOException {
+        Fixtures.delete(root);
+    }
+
+    @Benchmark
+    public int list() throws IOException {
+        return count(null);
+    }
+
+    @Benchmark
+    public int listNamesOnly() throws IOException {
+        return count(noMatch);
+    }
+
+    @Benchmark
+    public FileAttributeSnapshot readAttributes() {
+        return FileAttributeSnapshot.read(files);
+    }
+
+    @Benchmark
+    public long fileAttributes() {
+        long sum = 0;
+        for (File file : files) {
+            sum += file.length() + file.lastModified();
+            sum += (file.isDirectory() ? 1 : 0) + (file.isFile() ? 2 : 0) + (file.canRead() ? 4 : 0)
+                    + (file.canWrite() ? 8 : 0) + (file.canExecute() ? 16 : 0) + (file.isHidden() ? 32 : 0);
+        }
+        return sum;
+    }
+
+    private int count(FileNameFilter filter) throws IOException {
+        final int[] count = new int[1];
+        FileOperations.list(directory, false, filter, IoProgress.NONE, new FileOperations.ListingListener() {
+            @Override
+            public void chunk(FileAttributeSnapshot chunk) {
+                count[0] += chunk.size();
+            }
+        });
+        return count[0];
+    }
+}
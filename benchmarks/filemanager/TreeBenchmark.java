@@ -0,0 +1,87 @@
+package filemanager;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Copying and deleting a tree of 10,000 files of 4 KB in 200 directories.
+ * See {@link Fixtures} for running.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(1)
+public class TreeBenchmark {
+    @State(Scope.Benchmark)
+    public static class Tree {
+        Path root;
+        Path tree;
+
+        @Setup(Level.Trial)
+        public void createFixture() throws IOException {
+            root = Fixtures.createTempDirectory("fm-tree");
+            tree = Fixtures.tree(root, 200, 50, 4096);
+        }
+
+        @TearDown(Level.Trial)
+        public void deleteFixture() throws IOException {
+            Fixtures.delete(root);
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class CopyTarget {
+        File target;
+
+        @Setup(Level.Invocation)
+        public void chooseTarget(Tree tree) {
+            target = tree.root.resolve("copy").toFile();
+        }
+
+        @TearDown(Level.Invocation)
+        public void deleteTarget() throws IOException {
+            Fixtures.delete(target.toPath());
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class Victim {
+        File victim;
+
+        @Setup(Level.Invocation)
+        public void createVictim(Tree tree) throws IOException {
+            Path path = tree.root.resolve("victim");
+            Files.createDirectory(path);
+            new ParallelTreeCopier().copy(tree.tree, path, IoProgress.NONE);
+            victim = path.toFile();
+        }
+    }
+
+    @Benchmark
+    public void copyTree(Tree tree, CopyTarget copy) throws IOException {
+        FileOperations.copy(tree.tree.toFile(), copy.target, Fixtures.NO_PROGRESS);
+    }
+
+    @Benchmark
+    public void deleteTree(Victim victim) throws IOException {
+        FileOperations.delete(victim.victim, IoProgress.NONE);
+    }
+}
@@ -0,0 +1,72 @@
+package filemanager;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Zipping and unzipping 64 MB of mixed content: text, compressed media,
+ * random and sparse data. See {@link Fixtures} for running.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(1)
+public class ZipBenchmark {
+    @Param({ "FASTEST", "BALANCED", "SMALLEST" })
+    public String preset;
+
+    private Path root;
+    private File corpus;
+    private File archive;
+    private File zip;
+    private File extracted;
+
+    @Setup(Level.Trial)
+    public void createFixture() throws IOException {
+        root = Fixtures.createTempDirectory("fm-zip");
+        corpus = Fixtures.mixedCorpus(root, 64).toFile();
+        archive = root.resolve("archive.zip").toFile();
+        FileOperations.zip(corpus, archive, CompressionPreset.valueOf(preset), Fixtures.NO_PROGRESS);
+        zip = root.resolve("corpus.zip").toFile();
+        extracted = root.resolve("extracted").toFile();
+    }
+
+    @TearDown(Level.Invocation)
+    public void deleteOutput() throws IOException {
+        zip.delete();
+        Fixtures.delete(extracted.toPath());
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteFixture() throws IOException {
+        Fixtures.delete(root);
+    }
+
+    @Benchmark
+    public void zip() throws IOException {
+        FileOperations.zip(corpus, zip, CompressionPreset.valueOf(preset), Fixtures.NO_PROGRESS);
+    }
+
+    @Benchmark
+    public void unzip() throws IOException {
+        FileOperations.unzip(archive, extracted, null, Fixtures.NO_PROGRESS);
+    }
+}
@@ -0,0 +1,235 @@
+package filemanager;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CancellationException;
+
+/**
+ * Batch mode: runs {@link FileOperations} from the command line, without a
+ * display. A path argument of {@code -} reads further paths from standard
+ * input, one per line, so jobs over many files can be piped in. Each path is
+ * processed on its own; a failure is reported and the rest carry on.
+ */
+final class CommandLine {
+    static final int OK = 0;
+    static final int FAILED = 1;
+    static final int USAGE = 2;
+
+    private static final String USAGE_TEXT = "Usage: filemanager <command> [options] <path>...\n"
+            + "  list <directory>...                  list name, size, modified and type\n"
+            + "  copy [--verify crc32c|sha-256] <source>... <target>\n"
+            + "                                       copy into the target directory, or to target\n"
+            + "  move [--verify crc32c|sha-256] <source>... <target>\n"
+            + "                                       move into the target directory, or to target\n"
+            + "  delete <path>...                     delete files and directory trees\n"
+            + "  zip [--preset fastest|balanced|smallest] <path>...\n"
+            + "                                       zip each path to <name>.zip next to it\n"
+            + "  unzip [--to <directory>] <zip>...    extract next to each archive, or into --to\n"
+            + "A path of - reads paths from standard input, one per line. No arguments starts the GUI.";
+
+    private final PrintStream out;
+    private final PrintStream err;
+    private int failures;
+
+    CommandLine(PrintStream out, PrintStream err) {
+        this.out = out;
+        this.err = err;
+    }
+
+    /** Runs one command and returns the process exit code. */
+    int run(String[] args) {
+        if (args.length == 0 || "help".equals(args[0]) || "--help".equals(args[0])) {
+            out.println(USAGE_TEXT);
+            return args.length == 0 ? USAGE : OK;
+        }
+        String command = args[0];
+        CompressionPreset preset = CompressionPreset.BALANCED;
+        File unzipTo = null;
+        String verify = null;
+        List<File> paths = new ArrayList<File>();
+        try {
+            for (int i = 1; i < args.length; i++) {
+                if ("--preset".equals(args[i]) && i + 1 < args.length) {
+                    preset = CompressionPreset.valueOf(args[++i].toUpperCase(Locale.ROOT));
+                } else if ("--verify".equals(args[i]) && i + 1 < args.length) {
+                    verify = args[++i];
+                    try {
+                        ContentHash.create(verify);
+                    } catch (IllegalArgumentException e) {
+                        err.println(e.getMessage());
+                        return USAGE;
+                    }
+                } else if ("--to".equals(args[i]) && i + 1 < args.length) {
+                    unzipTo = new File(args[++i]);
+                } else if ("-".equals(args[i])) {
+                    readPaths(paths);
+                } else {
+                    paths.add(new File(args[i]));
+                }
+            }
+        } catch (IllegalArgumentException e) {
+            err.println("Unknown preset, use fastest, balanced or smallest");
+            return USAGE;
+        } catch (IOException e) {
+            err.println("Can not read paths: " + e.getMessage());
+            return FAILED;
+        }
+        if (paths.isEmpty()) {
+            err.println(USAGE_TEXT);
+            return USAGE;
+        }
+        if ("list".equals(command)) {
+            for (File directory : paths) {
+                list(directory);
+            }
+        } else if ("copy".equals(command) || "move".equals(command)) {
+            if (paths.size() < 2) {
+                err.println(USAGE_TEXT);
+                return USAGE;
+            }
+            File target = paths.remove(paths.size() - 1);
+            boolean intoDirectory = target.isDirectory();
+            if (!intoDirectory && paths.size() > 1) {
+                err.println("Not a directory: " + target);
+                return USAGE;
+            }
+            for (File source : paths) {
+                transfer(source, intoDirectory ? new File(target, source.getName()) : target,
+                        "move".equals(command), verify);
+            }
+        } else if ("delete".equals(command)) {
+            for (File file : paths) {
+                delete(file);
+            }
+        } else if ("zip".equals(command)) {
+            for (File file : paths) {
+                zip(file, preset);
+            }
+        } else if ("unzip".equals(command)) {
+            for (File zip : paths) {
+                unzip(zip, unzipTo != null ? unzipTo : zip.getAbsoluteFile().getParentFile());
+            }
+        } else {
+            err.println("Unknown command: " + command);
+            err.println(USAGE_TEXT);
+            return USAGE;
+        }
+        return failures == 0 ? OK : FAILED;
+    }
+
+    private void readPaths(List<File> paths) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8));
+        String line;
+        while ((line = reader.readLine()) != null) {
+            if (!line.isEmpty()) {
+                paths.add(new File(line));
+            }
+        }
+    }
+
+    private void list(File directory) {
+        try {
+            FileOperations.list(directory, false, null, IoProgress.NONE, new FileOperations.ListingListener() {
+                @Override
+                public void chunk(FileAttributeSnapshot chunk) {
+                    for (int i = 0; i < chunk.size(); i++) {
+                        out.println(chunk.getFile(i).getPath() + '\t'
+                                + chunk.getLength(i) + '\t'
+                                + new Date(chunk.getLastModified(i)) + '\t'
+                                + (chunk.is(i, FileAttributeSnapshot.DIRECTORY) ? 'd' : '-')
+                                + (chunk.is(i, FileAttributeSnapshot.READABLE) ? 'r' : '-')
+                                + (chunk.is(i, FileAttributeSnapshot.WRITABLE) ? 'w' : '-')
+                                + (chunk.is(i, FileAttributeSnapshot.EXECUTABLE) ? 'x' : '-'));
+                    }
+                }
+            });
+        } catch (IOException e) {
+            failed("list", directory, e);
+        }
+    }
+
+    private void transfer(File source, File target, boolean move, String verify) {
+        long start = System.nanoTime();
+        BytesProgress progress = new BytesProgress();
+        try {
+            String verified = move ? FileOperations.move(source, target, verify, progress)
+                    : FileOperations.copy(source, target, verify, progress);
+            done(move ? "moved" : "copied", source + " -> " + target, progress.bytes, start);
+            if (verified != null) {
+                out.println("verified " + verified);
+            }
+        } catch (IOException | CancellationException e) {
+            failed(move ? "move" : "copy", source, e);
+        }
+    }
+
+    private void delete(File file) {
+        long start = System.nanoTime();
+        try {
+            FileOperations.delete(file, IoProgress.NONE);
+            done("deleted", file.getPath(), -1, start);
+        } catch (IOException e) {
+            failed("delete", file, e);
+        }
+    }
+
+    private void zip(File file, CompressionPreset preset) {
+        long start = System.nanoTime();
+        File zip = FileOperations.zipTarget(file);
+        BytesProgress progress = new BytesProgress();
+        try {
+            FileOperations.zip(file, zip, preset, progress);
+            done("zipped", file + " -> " + zip, progress.bytes, start);
+        } catch (IOException e) {
+            failed("zip", file, e);
+        }
+    }
+
+    private void unzip(File zip, File directory) {
+        long start = System.nanoTime();
+        BytesProgress progress = new BytesProgress();
+        try {
+            FileOperations.unzip(zip, directory, null, progress);
+            done("unzipped", zip + " -> " + directory, progress.bytes, start);
+        } catch (IOException e) {
+            failed("unzip", zip, e);
+        }
+    }
+
+    private void done(String what, String detail, long bytes, long start) {
+        long millis = (System.nanoTime() - start) / 1000000L;
+        String size = bytes >= 0 ? bytes + " bytes, " : "";
+        out.println(what + ' ' + detail + " (" + size + millis + " ms)");
+    }
+
+    private void failed(String what, File file, Exception e) {
+        failures++;
+        err.println("Can not " + what + ' ' + file + ": " + (e.getMessage() == null ? e.toString() : e.getMessage()));
+    }
+
+    private static final class BytesProgress implements FileOperations.SizedProgress {
+        private long bytes;
+
+        @Override
+        public void total(long total) {
+        }
+
+        @Override
+        public synchronized void advance(long count) {
+            bytes += count;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package filemanager;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.zip.Deflater;
+
+/**
+ * Per entry choice between STORED and a deflate level. Names with a known
+ * compressed format are stored outright; everything else is judged by how
+ * well a sample of its first block deflates at level 1.
+ */
+enum CompressionPreset {
+    FASTEST("Fastest", 1, 0.90, true),
+    BALANCED("Balanced", 6, 0.95, true),
+    SMALLEST("Smallest", 9, 0.98, false);
+
+    /** Level value meaning the entry is stored without compression. */
+    static final int STORED = -1;
+
+    private static final int SAMPLE_SIZE = 32 << 10;
+    // sampled ratio above which higher levels buy next to nothing
+    private static final double POOR_RATIO = 0.80;
+    private static final Set<String> COMPRESSED_EXTENSIONS = new HashSet<String>(Arrays.asList("jpg", "jpeg",
+            "png", "gif", "webp", "heic", "avif", "mp3", "m4a", "aac", "ogg", "opus", "flac", "mp4", "m4v", "mkv",
+            "webm", "avi", "mov", "wmv", "zip", "jar", "war", "apk", "docx", "xlsx", "pptx", "odt", "gz", "tgz",
+            "bz2", "xz", "zst", "lz4", "7z", "rar", "br"));
+
+    private final String label;
+    private final int level;
+    private final double storeRatio;
+    private final boolean trustExtensions;
+
+    CompressionPreset(String label, int level, double storeRatio, boolean trustExtensions) {
+        this.label = label;
+        this.level = level;
+        this.storeRatio = storeRatio;
+        this.trustExtensions = trustExtensions;
+    }
+
+    /**
+     * Returns the deflate level for an entry, or {@link #STORED}.
+     *
+     * @param sample the start of the entry's data
+     */
+    int chooseLevel(String name, byte[] sample, int length) {
+        if (trustExtensions && COMPRESSED_EXTENSIONS.contains(extension(name))) {
+            return STORED;
+        }
+        if (length == 0) {
+            return level;
+        }
+        double ratio = sampleRatio(sample, Math.min(length, SAMPLE_SIZE));
+        if (ratio >= storeRatio) {
+            return STORED;
+        }
+        if (ratio >= POOR_RATIO && this != SMALLEST) {
+            return Deflater.BEST_SPEED;
+        }
+        return level;
+    }
+
+    @Override
+    public String toString() {
+        return label;
+    }
+
+    private static double sampleRatio(byte[] sample, int length) {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+        try {
+            deflater.setInput(sample, 0, length);
+            deflater.finish();
+            byte[] output = new byte[length + 64];
+            int compressed = 0;
+            while (!deflater.finished() && compressed < output.length) {
+                compressed += deflater.deflate(output, compressed, output.length - compressed);
+            }
+            return deflater.finished() ? (double) compressed / length : 1.0;
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static String extension(String name) {
+        int slash = name.lastIndexOf('/');
+        int dot = name.lastIndexOf('.');
+        return dot > slash + 1 ? name.substring(dot + 1).toLowerCase(Locale.ROOT) : "";
+    }
+}
@@ -0,0 +1,217 @@
+package filemanager;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Locale;
+import java.util.concurrent.CancellationException;
+import java.util.zip.CRC32;
+import java.util.zip.Checksum;
+
+/**
+ * A running checksum of file contents, for copies verified while they are
+ * made: the copy loop feeds its buffers in as they pass, and the target is
+ * read back once with {@link #of}. CRC32C is the cheap default; SHA-256 is
+ * there for whoever wants a cryptographic hash. CRC32C needs Java 9, on
+ * Java 8 it falls back to CRC32 and says so in {@link #getAlgorithm}.
+ */
+final class ContentHash {
+    static final String CRC32C = "CRC32C";
+    static final String SHA256 = "SHA-256";
+    static final String DEFAULT_ALGORITHM = System.getProperty("filemanager.verify.algorithm", CRC32C);
+
+    private static final int READ_BUFFER = 1 << 20;
+    private static final long MAP_WINDOW = 64L << 20;
+    // O_DIRECT, only there on Java 10 and later
+    private static final OpenOption DIRECT = directOption();
+
+    private final String algorithm;
+    private final MessageDigest digest;
+    private final Checksum checksum;
+    private final Method checksumUpdate;
+
+    private ContentHash(String algorithm, MessageDigest digest, Checksum checksum, Method checksumUpdate) {
+        this.algorithm = algorithm;
+        this.digest = digest;
+        this.checksum = checksum;
+        this.checksumUpdate = checksumUpdate;
+    }
+
+    /**
+     * @param algorithm {@link #CRC32C} or {@link #SHA256}, in any case
+     * @throws IllegalArgumentException for any other algorithm
+     */
+    static ContentHash create(String algorithm) {
+        if (SHA256.equalsIgnoreCase(algorithm) || "SHA256".equalsIgnoreCase(algorithm)) {
+            try {
+                return new ContentHash(SHA256, MessageDigest.getInstance(SHA256), null, null);
+            } catch (NoSuchAlgorithmException e) {
+                // every Java platform has to provide SHA-256
+                throw new IllegalStateException(e);
+            }
+        }
+        if ("CRC32".equalsIgnoreCase(algorithm)) {
+            try {
+                return new ContentHash("CRC32", null, new CRC32(), CRC32.class.getMethod("update", ByteBuffer.class));
+            } catch (NoSuchMethodException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+        if (!CRC32C.equalsIgnoreCase(algorithm)) {
+            throw new IllegalArgumentException("Unknown checksum " + algorithm + ", use crc32c or sha-256");
+        }
+        Checksum checksum;
+        String name = CRC32C;
+        try {
+            checksum = (Checksum) Class.forName("java.util.zip.CRC32C").getConstructor().newInstance();
+        } catch (ReflectiveOperationException | LinkageError e) {
+            checksum = new CRC32();
+            name = "CRC32";
+        }
+        try {
+            // update(ByteBuffer) is only on the classes in Java 8, not on Checksum
+            return new ContentHash(name, null, checksum, checksum.getClass().getMethod("update", ByteBuffer.class));
+        } catch (NoSuchMethodException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    String getAlgorithm() {
+        return algorithm;
+    }
+
+    /** Adds the remaining bytes of {@code buffer}, leaving its position where it was. */
+    void update(ByteBuffer buffer) {
+        ByteBuffer bytes = buffer.duplicate();
+        if (digest != null) {
+            digest.update(bytes);
+            return;
+        }
+        try {
+            checksumUpdate.invoke(checksum, bytes);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /** Returns the hash of everything added, in hex. */
+    String finish() {
+        if (digest != null) {
+            StringBuilder hex = new StringBuilder();
+            for (byte b : digest.digest()) {
+                hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+            }
+            return hex.toString();
+        }
+        return String.format(Locale.ROOT, "%08x", checksum.getValue());
+    }
+
+    /**
+     * Hashes {@code file} as it is on disk. Where the JVM and filesystem
+     * support it the file is read with O_DIRECT, bypassing the page cache
+     * that still holds what was just written; otherwise it is read through
+     * memory mapped windows. Reports the read bytes as progress.
+     */
+    static String of(Path file, String algorithm, IoProgress progress) throws IOException {
+        ContentHash hash = create(algorithm);
+        long position = 0;
+        if (DIRECT != null) {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, DIRECT)) {
+                position = readDirect(channel, blockSize(file), hash, progress);
+            } catch (IOException | UnsupportedOperationException e) {
+                // e.g. tmpfs refuses O_DIRECT when opening, use the mapping
+            }
+            if (position < 0) {
+                return hash.finish();
+            }
+        }
+        // the mapping goes on where direct reads stopped, what they read is hashed and counted
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            for (; position < size; position += MAP_WINDOW) {
+                if (progress.isCancelled()) {
+                    throw new CancellationException();
+                }
+                long window = Math.min(MAP_WINDOW, size - position);
+                hash.update(channel.map(FileChannel.MapMode.READ_ONLY, position, window));
+                progress.advance(window);
+            }
+        }
+        return hash.finish();
+    }
+
+    /**
+     * O_DIRECT wants buffer address, length and file position aligned to
+     * the block size, so whole aligned blocks are read until a short read
+     * marks the end of the file.
+     *
+     * @return -1 once the whole file is hashed, otherwise the offset a read
+     *         failed at
+     */
+    private static long readDirect(FileChannel channel, int blockSize, ContentHash hash, IoProgress progress)
+            throws IOException {
+        int length = Math.max(blockSize, READ_BUFFER / blockSize * blockSize);
+        ByteBuffer buffer;
+        try {
+            ByteBuffer raw = ByteBuffer.allocateDirect(length + blockSize);
+            buffer = (ByteBuffer) ByteBuffer.class.getMethod("alignedSlice", int.class).invoke(raw, blockSize);
+        } catch (ReflectiveOperationException e) {
+            throw new UnsupportedOperationException(e);
+        }
+        long position = 0;
+        while (true) {
+            if (progress.isCancelled()) {
+                throw new CancellationException();
+            }
+            buffer.clear();
+            buffer.limit(length);
+            int read;
+            try {
+                read = channel.read(buffer, position);
+            } catch (IOException e) {
+                return position;
+            }
+            if (read <= 0) {
+                return -1;
+            }
+            buffer.flip();
+            hash.update(buffer);
+            progress.advance(read);
+            position += read;
+            if (read < length) {
+                return -1;
+            }
+        }
+    }
+
+    private static int blockSize(Path file) throws IOException {
+        FileStore store = Files.getFileStore(file);
+        try {
+            return (int) (long) (Long) FileStore.class.getMethod("getBlockSize").invoke(store);
+        } catch (ReflectiveOperationException e) {
+            throw new UnsupportedOperationException(e);
+        }
+    }
+
+    private static OpenOption directOption() {
+        try {
+            Class<?> options = Class.forName("com.sun.nio.file.ExtendedOpenOption");
+            for (Object option : options.getEnumConstants()) {
+                if ("DIRECT".equals(option.toString())) {
+                    return (OpenOption) option;
+                }
+            }
+        } catch (ClassNotFoundException | LinkageError e) {
+            // not this JVM
+        }
+        return null;
+    }
+}
@@ -0,0 +1,348 @@
+package filemanager;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Finds the files below a directory whose contents contain any of a set of
+ * patterns, like {@code grep -rlF}. The patterns are compiled into one
+ * Aho-Corasick automaton over UTF-8 bytes, so every byte is looked at once
+ * however many patterns there are. Files are scanned concurrently on a
+ * fork-join pool, one task per directory and per batch of its files. Files
+ * larger than {@link #MAP_THRESHOLD} are memory mapped window by window, so
+ * huge logs never pass through the heap; the windows of a file longer than
+ * one are scanned in parallel. Files whose first block contains a NUL byte
+ * are taken for binary and skipped. Unreadable files are skipped as well.
+ */
+final class ContentSearcher {
+    static final int DEFAULT_PARALLELISM = Integer.getInteger("filemanager.grep.parallelism",
+            Math.max(2, Runtime.getRuntime().availableProcessors()));
+
+    private static final int SNIFF_BYTES = 8192;
+    // below this a plain read is cheaper than setting up a mapping
+    private static final long MAP_THRESHOLD = 64L << 10;
+    private static final long MAP_WINDOW = 64L << 20;
+    // a directory's files are handed out in batches of about this many bytes or files
+    private static final long BATCH_BYTES = 4L << 20;
+    private static final int BATCH_FILES = 64;
+
+    interface Listener {
+        /** Called from the scanning threads for every matching file. */
+        void found(Path file);
+    }
+
+    private final int[] transitions;
+    private final boolean[] accepting;
+    private final int longestPattern;
+    private final int parallelism;
+
+    /**
+     * @param ignoreCase matches ASCII letters regardless of case
+     */
+    ContentSearcher(List<String> patterns, boolean ignoreCase) {
+        this(patterns, ignoreCase, DEFAULT_PARALLELISM);
+    }
+
+    ContentSearcher(List<String> patterns, boolean ignoreCase, int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("parallelism must be at least 1: " + parallelism);
+        }
+        this.parallelism = parallelism;
+        List<byte[]> keys = new ArrayList<byte[]>();
+        for (String pattern : patterns) {
+            if (!pattern.isEmpty()) {
+                keys.add(pattern.getBytes(StandardCharsets.UTF_8));
+            }
+        }
+        if (keys.isEmpty()) {
+            throw new IllegalArgumentException("no pattern to search for");
+        }
+        // trie first, one row of 256 transitions per state, -1 for none yet
+        int capacity = 1;
+        int longest = 0;
+        for (byte[] key : keys) {
+            capacity += key.length;
+            longest = Math.max(longest, key.length);
+        }
+        longestPattern = longest;
+        int[] goTo = new int[capacity * 256];
+        Arrays.fill(goTo, -1);
+        boolean[] output = new boolean[capacity];
+        int states = 1;
+        for (byte[] key : keys) {
+            int state = 0;
+            for (byte b : key) {
+                int c = fold(b & 0xff, ignoreCase);
+                int next = goTo[state * 256 + c];
+                if (next < 0) {
+                    next = states++;
+                    goTo[state * 256 + c] = next;
+                }
+                state = next;
+            }
+            output[state] = true;
+        }
+        // then complete it into a DFA breadth first, following failure links
+        int[] fail = new int[states];
+        int[] queue = new int[states];
+        int head = 0;
+        int tail = 0;
+        for (int c = 0; c < 256; c++) {
+            int next = goTo[c];
+            if (next < 0) {
+                goTo[c] = 0;
+            } else {
+                fail[next] = 0;
+                queue[tail++] = next;
+            }
+        }
+        while (head < tail) {
+            int state = queue[head++];
+            output[state] |= output[fail[state]];
+            for (int c = 0; c < 256; c++) {
+                int next = goTo[state * 256 + c];
+                if (next < 0) {
+                    goTo[state * 256 + c] = goTo[fail[state] * 256 + c];
+                } else {
+                    fail[next] = goTo[fail[state] * 256 + c];
+                    queue[tail++] = next;
+                }
+            }
+        }
+        if (ignoreCase) {
+            for (int state = 0; state < states; state++) {
+                for (int c = 'A'; c <= 'Z'; c++) {
+                    goTo[state * 256 + c] = goTo[state * 256 + c + ('a' - 'A')];
+                }
+            }
+        }
+        transitions = Arrays.copyOf(goTo, states * 256);
+        accepting = Arrays.copyOf(output, states);
+    }
+
+    /**
+     * Scans every regular file below {@code root}, or {@code root} itself if
+     * it is a file. Reports the scanned bytes as progress.
+     */
+    void search(Path root, IoProgress progress, Listener listener) {
+        Run run = new Run(progress, listener);
+        BasicFileAttributes attrs;
+        try {
+            attrs = Files.readAttributes(root, BasicFileAttributes.class);
+        } catch (IOException e) {
+            return;
+        }
+        RecursiveAction task = attrs.isDirectory() ? run.new DirectoryTask(root)
+                : run.new FilesTask(Collections.singletonList(root));
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            pool.invoke(task);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Runs the automaton over the remaining bytes of {@code buffer}.
+     *
+     * @return -1 on a match, otherwise the state to continue with
+     */
+    private int scan(ByteBuffer buffer, int state) {
+        int[] table = transitions;
+        boolean[] out = accepting;
+        if (buffer.hasArray()) {
+            byte[] array = buffer.array();
+            int end = buffer.arrayOffset() + buffer.limit();
+            for (int i = buffer.arrayOffset() + buffer.position(); i < end; i++) {
+                state = table[(state << 8) | (array[i] & 0xff)];
+                if (out[state]) {
+                    return -1;
+                }
+            }
+            return state;
+        }
+        for (int i = buffer.position(), end = buffer.limit(); i < end; i++) {
+            state = table[(state << 8) | (buffer.get(i) & 0xff)];
+            if (out[state]) {
+                return -1;
+            }
+        }
+        return state;
+    }
+
+    private static int fold(int c, boolean ignoreCase) {
+        return ignoreCase && c >= 'A' && c <= 'Z' ? c + ('a' - 'A') : c;
+    }
+
+    private final class Run {
+        private final IoProgress progress;
+        private final Listener listener;
+
+        Run(IoProgress progress, Listener listener) {
+            this.progress = progress;
+            this.listener = listener;
+        }
+
+        private void checkStopped() {
+            if (progress.isCancelled()) {
+                throw new CancellationException();
+            }
+        }
+
+        private void scan(Path file) {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                long size = channel.size();
+                ByteBuffer head = ByteBuffer.allocate((int) (size < MAP_THRESHOLD ? size : SNIFF_BYTES));
+                while (head.hasRemaining() && channel.read(head) >= 0) {
+                    // a file can be shorter than its size said
+                }
+                head.flip();
+                for (int i = 0; i < Math.min(head.limit(), SNIFF_BYTES); i++) {
+                    if (head.get(i) == 0) {
+                        return;
+                    }
+                }
+                int state = ContentSearcher.this.scan(head, 0);
+                progress.advance(head.limit());
+                long position = head.limit();
+                if (state >= 0 && size - position > MAP_WINDOW) {
+                    AtomicBoolean matched = new AtomicBoolean();
+                    List<WindowTask> windows = new ArrayList<WindowTask>();
+                    for (; position < size; position += MAP_WINDOW) {
+                        windows.add(new WindowTask(channel, position, Math.min(size, position + MAP_WINDOW), matched));
+                    }
+                    ForkJoinTask.invokeAll(windows);
+                    state = matched.get() ? -1 : 0;
+                }
+                // the automaton state carries matches across window boundaries
+                while (state >= 0 && position < size) {
+                    checkStopped();
+                    long window = Math.min(MAP_WINDOW, size - position);
+                    MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, position, window);
+                    state = ContentSearcher.this.scan(mapped, state);
+                    progress.advance(window);
+                    position += window;
+                }
+                if (state < 0) {
+                    listener.found(file);
+                }
+            } catch (IOException e) {
+                // unreadable or vanished, skipped like grep -s does
+            }
+        }
+
+        final class WindowTask extends RecursiveAction {
+            private final FileChannel channel;
+            private final long start;
+            private final long end;
+            private final AtomicBoolean matched;
+
+            WindowTask(FileChannel channel, long start, long end, AtomicBoolean matched) {
+                this.channel = channel;
+                this.start = start;
+                this.end = end;
+                this.matched = matched;
+            }
+
+            @Override
+            protected void compute() {
+                if (matched.get()) {
+                    return;
+                }
+                checkStopped();
+                // starts a pattern length early, so a match across the boundary is not missed
+                long from = Math.max(0, start - (longestPattern - 1));
+                try {
+                    MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, from, end - from);
+                    if (ContentSearcher.this.scan(mapped, 0) < 0) {
+                        matched.set(true);
+                    }
+                    progress.advance(end - start);
+                } catch (IOException e) {
+                    // shrunk while scanned, the windows that could be read count
+                }
+            }
+        }
+
+        final class FilesTask extends RecursiveAction {
+            private final List<Path> files;
+
+            FilesTask(List<Path> files) {
+                this.files = files;
+            }
+
+            @Override
+            protected void compute() {
+                for (Path file : files) {
+                    checkStopped();
+                    scan(file);
+                }
+            }
+        }
+
+        final class DirectoryTask extends RecursiveAction {
+            private final Path directory;
+
+            DirectoryTask(Path directory) {
+                this.directory = directory;
+            }
+
+            @Override
+            protected void compute() {
+                List<RecursiveAction> tasks = new ArrayList<RecursiveAction>();
+                List<Path> batch = new ArrayList<Path>();
+                long batchBytes = 0;
+                try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+                    for (Path child : stream) {
+                        checkStopped();
+                        BasicFileAttributes attrs;
+                        try {
+                            attrs = Files.readAttributes(child, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                        } catch (IOException e) {
+                            // vanished since it was listed, the rest of the directory is still searched
+                            continue;
+                        }
+                        if (attrs.isDirectory()) {
+                            if (!child.getFileName().toString().startsWith(ParallelTreeDeleter.STAGING_PREFIX)) {
+                                tasks.add(new DirectoryTask(child));
+                            }
+                        } else if (attrs.isRegularFile()) {
+                            batch.add(child);
+                            batchBytes += attrs.size();
+                            if (batchBytes >= BATCH_BYTES || batch.size() >= BATCH_FILES) {
+                                tasks.add(new FilesTask(batch));
+                                batch = new ArrayList<Path>();
+                                batchBytes = 0;
+                            }
+                        }
+                    }
+                } catch (IOException | DirectoryIteratorException e) {
+                    // unreadable directory, search what could be listed
+                }
+                if (!batch.isEmpty()) {
+                    tasks.add(new FilesTask(batch));
+                }
+                invokeAll(tasks);
+            }
+        }
+    }
+}
@@ -0,0 +1,344 @@
+package filemanager;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.swing.SwingUtilities;
+
+/**
+ * Computes recursive directory sizes on a fork-join pool, one task per
+ * subdirectory. Every directory visited along the way is cached with the
+ * modification time it had, so a later request for it or any directory
+ * above it reuses the subtree instead of walking it again. A directory's
+ * mtime only changes with its direct entries, so callers that learn about
+ * deeper changes, e.g. from the {@link DirectoryWatcher}, should
+ * {@link #invalidate} them.
+ * <p>
+ * Results reach listeners on the EDT: running scans are reported every
+ * {@link #PUBLISH_MILLIS} with what they counted so far, then once more when
+ * complete.
+ */
+final class DirectorySizeService {
+    static final int DEFAULT_PARALLELISM = Integer.getInteger("filemanager.size.parallelism",
+            Math.max(4, 2 * Runtime.getRuntime().availableProcessors()));
+    private static final long PUBLISH_MILLIS = 300;
+    private static final int CACHE_CAPACITY = 200000;
+
+    interface Listener {
+        void sizesChanged(Map<File, DirectorySize> sizes);
+    }
+
+    static final class DirectorySize {
+        final long bytes;
+        final long files;
+        /** False while the directory is still being scanned. */
+        final boolean complete;
+
+        DirectorySize(long bytes, long files, boolean complete) {
+            this.bytes = bytes;
+            this.files = files;
+            this.complete = complete;
+        }
+    }
+
+    private static final class CacheEntry {
+        final long mtime;
+        final long bytes;
+        final long files;
+
+        CacheEntry(long mtime, long bytes, long files) {
+            this.mtime = mtime;
+            this.bytes = bytes;
+            this.files = files;
+        }
+    }
+
+    private final class Scan {
+        final File root;
+        final AtomicLong bytes = new AtomicLong();
+        final AtomicLong files = new AtomicLong();
+        volatile boolean cancelled;
+        volatile DirectorySize result;
+
+        Scan(File root) {
+            this.root = root;
+        }
+    }
+
+    private final Map<File, CacheEntry> cache = new LinkedHashMap<File, CacheEntry>(1024, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<File, CacheEntry> eldest) {
+            return size() > CACHE_CAPACITY;
+        }
+    };
+    private final List<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+    private final List<Scan> scans = new ArrayList<Scan>();
+    private final ForkJoinPool pool;
+    private final ExecutorService coordinator = Executors.newSingleThreadExecutor(daemon("directory-size"));
+    private final ScheduledExecutorService publisher = Executors
+            .newSingleThreadScheduledExecutor(daemon("directory-size-publisher"));
+
+    DirectorySizeService() {
+        this(DEFAULT_PARALLELISM);
+    }
+
+    DirectorySizeService(int parallelism) {
+        pool = new ForkJoinPool(parallelism);
+        publisher.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                publish();
+            }
+        }, PUBLISH_MILLIS, PUBLISH_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Computes the sizes of {@code directories} in the background. Cached
+     * results are reported right away, the others as they are counted.
+     */
+    void request(Collection<File> directories) {
+        final List<File> requested = new ArrayList<File>(directories);
+        coordinator.execute(new Runnable() {
+            @Override
+            public void run() {
+                Map<File, DirectorySize> cached = new HashMap<File, DirectorySize>();
+                for (File directory : requested) {
+                    CacheEntry entry = lookup(directory.toPath());
+                    if (entry != null) {
+                        cached.put(directory, new DirectorySize(entry.bytes, entry.files, true));
+                        continue;
+                    }
+                    synchronized (scans) {
+                        if (findScan(directory) != null) {
+                            continue;
+                        }
+                        final Scan scan = new Scan(directory);
+                        scans.add(scan);
+                        pool.execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                try {
+                                    Total total = new SizeTask(scan, scan.root.toPath(), -1).invoke();
+                                    scan.result = new DirectorySize(total.bytes, total.files, true);
+                                } catch (CancellationException e) {
+                                    // dropped, the subtrees that finished are cached
+                                }
+                            }
+                        });
+                    }
+                }
+                deliver(cached);
+            }
+        });
+    }
+
+    /** Cancels every running scan, e.g. because another directory is shown. */
+    void cancelAll() {
+        synchronized (scans) {
+            for (Scan scan : scans) {
+                scan.cancelled = true;
+            }
+            scans.clear();
+        }
+    }
+
+    /** Forgets {@code directory} and every cached directory above it. */
+    void invalidate(File directory) {
+        synchronized (cache) {
+            for (File file = directory; file != null; file = file.getParentFile()) {
+                cache.remove(file);
+            }
+        }
+    }
+
+    /** Returns the cached size of {@code directory} if still valid, without scanning. */
+    DirectorySize getCached(File directory) {
+        CacheEntry entry = lookup(directory.toPath());
+        return entry == null ? null : new DirectorySize(entry.bytes, entry.files, true);
+    }
+
+    private CacheEntry lookup(Path directory) {
+        CacheEntry entry;
+        synchronized (cache) {
+            entry = cache.get(directory.toFile());
+        }
+        if (entry == null) {
+            return null;
+        }
+        try {
+            long mtime = Files.getLastModifiedTime(directory, LinkOption.NOFOLLOW_LINKS).toMillis();
+            return mtime == entry.mtime ? entry : null;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private Scan findScan(File directory) {
+        for (Scan scan : scans) {
+            if (scan.root.equals(directory)) {
+                return scan;
+            }
+        }
+        return null;
+    }
+
+    private void publish() {
+        Map<File, DirectorySize> sizes = new HashMap<File, DirectorySize>();
+        synchronized (scans) {
+            Iterator<Scan> iterator = scans.iterator();
+            while (iterator.hasNext()) {
+                Scan scan = iterator.next();
+                if (scan.result != null) {
+                    sizes.put(scan.root, scan.result);
+                    iterator.remove();
+                } else {
+                    sizes.put(scan.root, new DirectorySize(scan.bytes.get(), scan.files.get(), false));
+                }
+            }
+        }
+        deliver(sizes);
+    }
+
+    private void deliver(final Map<File, DirectorySize> sizes) {
+        if (sizes.isEmpty()) {
+            return;
+        }
+        SwingUtilities.invokeLater(new Runnable() {
+            @Override
+            public void run() {
+                for (Listener listener : listeners) {
+                    listener.sizesChanged(sizes);
+                }
+            }
+        });
+    }
+
+    private static final class Total {
+        final long bytes;
+        final long files;
+        // false if a listing below broke off, such a total is not cached
+        final boolean complete;
+
+        Total(long bytes, long files, boolean complete) {
+            this.bytes = bytes;
+            this.files = files;
+            this.complete = complete;
+        }
+    }
+
+    private final class SizeTask extends RecursiveTask<Total> {
+        private final Scan scan;
+        private final Path directory;
+        private long mtime;
+
+        /** @param mtime modification time from the parent's listing, -1 to read it */
+        SizeTask(Scan scan, Path directory, long mtime) {
+            this.scan = scan;
+            this.directory = directory;
+            this.mtime = mtime;
+        }
+
+        @Override
+        protected Total compute() {
+            long bytes = 0;
+            long files = 0;
+            boolean complete = true;
+            List<SizeTask> subdirectories = new ArrayList<SizeTask>();
+            try {
+                if (mtime < 0) {
+                    mtime = Files.getLastModifiedTime(directory, LinkOption.NOFOLLOW_LINKS).toMillis();
+                }
+                try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+                    for (Path child : stream) {
+                        if (scan.cancelled) {
+                            throw new CancellationException();
+                        }
+                        BasicFileAttributes attrs;
+                        try {
+                            attrs = Files.readAttributes(child, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                        } catch (IOException e) {
+                            // vanished since it was listed, the rest of the directory still counts
+                            continue;
+                        }
+                        if (attrs.isDirectory()) {
+                            long childMtime = attrs.lastModifiedTime().toMillis();
+                            CacheEntry cached;
+                            synchronized (cache) {
+                                cached = cache.get(child.toFile());
+                            }
+                            if (cached != null && cached.mtime == childMtime) {
+                                bytes += cached.bytes;
+                                files += cached.files;
+                                scan.bytes.addAndGet(cached.bytes);
+                                scan.files.addAndGet(cached.files);
+                            } else {
+                                SizeTask task = new SizeTask(scan, child, childMtime);
+                                task.fork();
+                                subdirectories.add(task);
+                            }
+                        } else {
+                            bytes += attrs.size();
+                            files++;
+                            scan.bytes.addAndGet(attrs.size());
+                            scan.files.incrementAndGet();
+                        }
+                    }
+                } catch (DirectoryIteratorException e) {
+                    complete = false;
+                }
+            } catch (IOException e) {
+                // unreadable directory, count what could be read like du does
+            }
+            for (SizeTask task : subdirectories) {
+                Total total = task.join();
+                bytes += total.bytes;
+                files += total.files;
+                complete &= total.complete;
+            }
+            if (mtime >= 0 && complete) {
+                synchronized (cache) {
+                    cache.put(directory.toFile(), new CacheEntry(mtime, bytes, files));
+                }
+            }
+            return new Total(bytes, files, complete);
+        }
+    }
+
+    private static ThreadFactory daemon(final String name) {
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, name);
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+}
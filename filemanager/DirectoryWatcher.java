@@ -0,0 +1,198 @@
+package filemanager;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import javax.swing.SwingUtilities;
+
+/**
+ * Watches directories with a {@link WatchService} and reports what changed in
+ * them. Events are collected for a short window after the first one arrives,
+ * so a burst such as a large extraction turns into a few batches. The
+ * attributes of changed entries are read on the watcher thread; listeners
+ * only get snapshots, on the EDT.
+ */
+final class DirectoryWatcher {
+
+    interface Listener {
+        /**
+         * Called on the EDT with the entries of {@code directory} that were
+         * created or modified, and the ones that are gone.
+         */
+        void directoryChanged(File directory, FileAttributeSnapshot changed, Set<File> removed);
+
+        /**
+         * Called on the EDT when events for {@code directory} were lost and it
+         * has to be listed again.
+         */
+        void directoryOverflowed(File directory);
+    }
+
+    private static final long COALESCE_MILLIS = 200;
+
+    private final Listener listener;
+    private final Map<File, WatchKey> keys = new HashMap<File, WatchKey>();
+    private final Map<WatchKey, File> directories = new HashMap<WatchKey, File>();
+    private final Map<File, Integer> watchers = new HashMap<File, Integer>();
+    private WatchService service;
+
+    DirectoryWatcher(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Starts watching {@code directory}. Calls nest, each one needs a matching
+     * {@link #unwatch}.
+     *
+     * @return false if the directory can not be watched
+     */
+    synchronized boolean watch(File directory) {
+        Integer count = watchers.get(directory);
+        if (count != null) {
+            watchers.put(directory, count + 1);
+            return true;
+        }
+        try {
+            if (service == null) {
+                service = FileSystems.getDefault().newWatchService();
+                Thread thread = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        pollEvents();
+                    }
+                }, "directory-watcher");
+                thread.setDaemon(true);
+                thread.start();
+            }
+            WatchKey key = directory.toPath().register(service, StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+            keys.put(directory, key);
+            directories.put(key, directory);
+            watchers.put(directory, 1);
+            return true;
+        } catch (IOException | RuntimeException e) {
+            // not on the default file system, gone, or out of watches
+            return false;
+        }
+    }
+
+    synchronized void unwatch(File directory) {
+        Integer count = watchers.get(directory);
+        if (count == null) {
+            return;
+        }
+        if (count > 1) {
+            watchers.put(directory, count - 1);
+            return;
+        }
+        watchers.remove(directory);
+        WatchKey key = keys.remove(directory);
+        directories.remove(key);
+        key.cancel();
+    }
+
+    synchronized boolean isWatching(File directory) {
+        return watchers.containsKey(directory);
+    }
+
+    private void pollEvents() {
+        try {
+            while (true) {
+                Map<File, Set<File>> changes = new LinkedHashMap<File, Set<File>>();
+                Set<File> overflowed = new LinkedHashSet<File>();
+                collect(service.take(), changes, overflowed);
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(COALESCE_MILLIS);
+                long remaining;
+                while ((remaining = deadline - System.nanoTime()) > 0) {
+                    WatchKey key = service.poll(remaining, TimeUnit.NANOSECONDS);
+                    if (key != null) {
+                        collect(key, changes, overflowed);
+                    }
+                }
+                deliver(changes, overflowed);
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // shutting down
+        }
+    }
+
+    private void collect(WatchKey key, Map<File, Set<File>> changes, Set<File> overflowed) {
+        File directory;
+        synchronized (this) {
+            directory = directories.get(key);
+        }
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (directory == null) {
+                continue;
+            }
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                overflowed.add(directory);
+                continue;
+            }
+            Set<File> changed = changes.get(directory);
+            if (changed == null) {
+                changed = new LinkedHashSet<File>();
+                changes.put(directory, changed);
+            }
+            changed.add(new File(directory, ((Path) event.context()).toString()));
+        }
+        if (!key.reset()) {
+            synchronized (this) {
+                // the directory itself went away
+                if (directory != null && keys.get(directory) == key) {
+                    keys.remove(directory);
+                    directories.remove(key);
+                    watchers.remove(directory);
+                }
+            }
+        }
+    }
+
+    private void deliver(Map<File, Set<File>> changes, Set<File> overflowed) {
+        for (final File directory : overflowed) {
+            changes.remove(directory);
+            SwingUtilities.invokeLater(new Runnable() {
+                @Override
+                public void run() {
+                    listener.directoryOverflowed(directory);
+                }
+            });
+        }
+        for (Map.Entry<File, Set<File>> entry : changes.entrySet()) {
+            final File directory = entry.getKey();
+            // whatever happened in the window, the entry now exists or it does not
+            FileAttributeSnapshot.Builder builder = new FileAttributeSnapshot.Builder(entry.getValue().size(), true,
+                    null);
+            final Set<File> removed = new LinkedHashSet<File>();
+            for (File file : entry.getValue()) {
+                if (Files.exists(file.toPath(), LinkOption.NOFOLLOW_LINKS)) {
+                    builder.add(file);
+                } else {
+                    removed.add(file);
+                }
+            }
+            final FileAttributeSnapshot changed = builder.build();
+            SwingUtilities.invokeLater(new Runnable() {
+                @Override
+                public void run() {
+                    listener.directoryChanged(directory, changed, removed);
+                }
+            });
+        }
+    }
+}
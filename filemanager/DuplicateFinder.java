@@ -0,0 +1,262 @@
+package filemanager;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Finds files with identical contents below a directory in three stages,
+ * each one only looking at what the previous one could not tell apart:
+ * files are grouped by size during the walk, files of equal size by a hash
+ * of their first and last {@link #BLOCK} bytes, and what is still equal by
+ * a SHA-256 of the whole file, read through memory mapped windows. Hashing
+ * runs on a fork-join pool. Empty files, links and several links to the
+ * same file are not reported.
+ */
+final class DuplicateFinder {
+    static final int DEFAULT_PARALLELISM = Integer.getInteger("filemanager.duplicates.parallelism",
+            Math.max(2, Runtime.getRuntime().availableProcessors()));
+
+    static final int BLOCK = 4096;
+    private static final long MAP_WINDOW = 64L << 20;
+
+    private final int parallelism;
+
+    DuplicateFinder() {
+        this(DEFAULT_PARALLELISM);
+    }
+
+    DuplicateFinder(int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("parallelism must be at least 1: " + parallelism);
+        }
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * Returns the groups of identical files below {@code root}, the group
+     * wasting the most space first. Reports the hashed bytes as progress.
+     * Files that can not be read are left out.
+     */
+    List<List<Path>> find(Path root, final IoProgress progress) throws IOException {
+        final Map<Long, List<Path>> bySize = new HashMap<Long, List<Path>>();
+        final Set<Object> seenKeys = new HashSet<Object>();
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                if (progress.isCancelled()) {
+                    throw new CancellationException();
+                }
+                return dir.getFileName() != null
+                        && dir.getFileName().toString().startsWith(ParallelTreeDeleter.STAGING_PREFIX)
+                                ? FileVisitResult.SKIP_SUBTREE : FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                Object key = attrs.fileKey();
+                if (attrs.isRegularFile() && attrs.size() > 0 && (key == null || seenKeys.add(key))) {
+                    List<Path> files = bySize.get(attrs.size());
+                    if (files == null) {
+                        files = new ArrayList<Path>(2);
+                        bySize.put(attrs.size(), files);
+                    }
+                    files.add(file);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException exc) {
+                return FileVisitResult.CONTINUE;
+            }
+        });
+
+        final Map<Path, Long> sizeOf = new HashMap<Path, Long>();
+        List<Path> candidates = new ArrayList<Path>();
+        for (Map.Entry<Long, List<Path>> entry : bySize.entrySet()) {
+            if (entry.getValue().size() > 1) {
+                for (Path file : entry.getValue()) {
+                    candidates.add(file);
+                    sizeOf.put(file, entry.getKey());
+                }
+            }
+        }
+
+        List<List<Path>> duplicates = new ArrayList<List<Path>>();
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            List<Path> unresolved = new ArrayList<Path>();
+            for (List<Path> group : group(pool, candidates, sizeOf, false, progress)) {
+                // the edges of a small file are all of it
+                if (sizeOf.get(group.get(0)) <= 2 * BLOCK) {
+                    duplicates.add(group);
+                } else {
+                    unresolved.addAll(group);
+                }
+            }
+            duplicates.addAll(group(pool, unresolved, sizeOf, true, progress));
+        } finally {
+            pool.shutdown();
+        }
+        Collections.sort(duplicates, new Comparator<List<Path>>() {
+            @Override
+            public int compare(List<Path> a, List<Path> b) {
+                return Long.compare(wasted(b), wasted(a));
+            }
+
+            private long wasted(List<Path> group) {
+                return sizeOf.get(group.get(0)) * (group.size() - 1);
+            }
+        });
+        return duplicates;
+    }
+
+    /**
+     * Hashes {@code files} and returns the groups of two or more with equal
+     * size and hash.
+     */
+    private static List<List<Path>> group(ForkJoinPool pool, List<Path> files, Map<Path, Long> sizeOf,
+            boolean full, IoProgress progress) {
+        String[] hashes = new String[files.size()];
+        pool.invoke(new HashTask(files, hashes, 0, files.size(), full, progress));
+        Map<String, List<Path>> byHash = new HashMap<String, List<Path>>();
+        for (int i = 0; i < hashes.length; i++) {
+            if (hashes[i] == null) {
+                continue;
+            }
+            String key = sizeOf.get(files.get(i)) + ":" + hashes[i];
+            List<Path> group = byHash.get(key);
+            if (group == null) {
+                group = new ArrayList<Path>(2);
+                byHash.put(key, group);
+            }
+            group.add(files.get(i));
+        }
+        List<List<Path>> groups = new ArrayList<List<Path>>();
+        for (List<Path> group : byHash.values()) {
+            if (group.size() > 1) {
+                groups.add(group);
+            }
+        }
+        return groups;
+    }
+
+    private static final class HashTask extends RecursiveAction {
+        private final List<Path> files;
+        private final String[] hashes;
+        private final int from;
+        private final int to;
+        private final boolean full;
+        private final IoProgress progress;
+
+        HashTask(List<Path> files, String[] hashes, int from, int to, boolean full, IoProgress progress) {
+            this.files = files;
+            this.hashes = hashes;
+            this.from = from;
+            this.to = to;
+            this.full = full;
+            this.progress = progress;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from == 0) {
+                return;
+            }
+            if (to - from > 1) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new HashTask(files, hashes, from, middle, full, progress),
+                        new HashTask(files, hashes, middle, to, full, progress));
+                return;
+            }
+            if (progress.isCancelled()) {
+                throw new CancellationException();
+            }
+            try {
+                hashes[from] = full ? fullHash(files.get(from), progress) : edgeHash(files.get(from), progress);
+            } catch (IOException e) {
+                // unreadable or vanished, left out
+            }
+        }
+    }
+
+    private static String edgeHash(Path file, IoProgress progress) throws IOException {
+        MessageDigest digest = sha256();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(size, BLOCK));
+            read(channel, buffer, 0);
+            digest.update(buffer);
+            if (size > BLOCK) {
+                buffer = ByteBuffer.allocate((int) Math.min(size - BLOCK, BLOCK));
+                read(channel, buffer, size - buffer.capacity());
+                digest.update(buffer);
+            }
+            progress.advance(Math.min(size, 2 * BLOCK));
+        }
+        return toHex(digest.digest());
+    }
+
+    private static String fullHash(Path file, IoProgress progress) throws IOException {
+        MessageDigest digest = sha256();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            for (long position = 0; position < size; position += MAP_WINDOW) {
+                if (progress.isCancelled()) {
+                    throw new CancellationException();
+                }
+                long window = Math.min(MAP_WINDOW, size - position);
+                digest.update(channel.map(FileChannel.MapMode.READ_ONLY, position, window));
+                progress.advance(window);
+            }
+        }
+        return toHex(digest.digest());
+    }
+
+    private static void read(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position + buffer.position());
+            if (read < 0) {
+                break;
+            }
+        }
+        buffer.flip();
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // every Java platform has to provide SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return hex.toString();
+    }
+}
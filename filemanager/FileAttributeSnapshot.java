@@ -0,0 +1,302 @@
+package filemanager;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.DosFileAttributes;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.nio.file.attribute.PosixFilePermission;
+import java.util.Arrays;
+import java.util.Set;
+
+/**
+ * Immutable, column oriented copy of the attributes of a directory listing.
+ * Every entry is read with a single bulk attribute call, so the table can
+ * render and sort without touching the filesystem again. Streaming listings
+ * grow by {@link #append}, which shares the column arrays with earlier
+ * snapshots the same way a growing slice does.
+ */
+final class FileAttributeSnapshot {
+    static final int READABLE = 1;
+    static final int WRITABLE = 1 << 1;
+    static final int EXECUTABLE = 1 << 2;
+    static final int DIRECTORY = 1 << 3;
+    static final int FILE = 1 << 4;
+    static final int HIDDEN = 1 << 5;
+    // attributes were skipped because the name filter rejected the entry
+    static final int UNREAD = 1 << 6;
+
+    static final FileAttributeSnapshot EMPTY = new Builder(0).build();
+
+    private static final boolean POSIX = FileSystems.getDefault().supportedFileAttributeViews().contains("posix");
+    private static final boolean DOS = FileSystems.getDefault().supportedFileAttributeViews().contains("dos");
+    private static final boolean DOS_ONLY = DOS && !POSIX;
+    private static final String USER = System.getProperty("user.name");
+
+    private final File[] files;
+    private final long[] sizes;
+    private final long[] mtimes;
+    private final int[] flags;
+    private final int count;
+    // number of array slots claimed by any snapshot sharing these arrays
+    private final int[] claimed;
+
+    private FileAttributeSnapshot(File[] files, long[] sizes, long[] mtimes, int[] flags, int count, int[] claimed) {
+        this.files = files;
+        this.sizes = sizes;
+        this.mtimes = mtimes;
+        this.flags = flags;
+        this.count = count;
+        this.claimed = claimed;
+    }
+
+    static FileAttributeSnapshot read(File[] files) {
+        Builder builder = new Builder(files.length);
+        for (File file : files) {
+            builder.add(file);
+        }
+        return builder.build();
+    }
+
+    /** Wraps columns read elsewhere, such as a {@link ListingCache}. Takes the arrays over. */
+    static FileAttributeSnapshot of(File[] files, long[] sizes, long[] mtimes, int[] flags) {
+        return new FileAttributeSnapshot(files, sizes, mtimes, flags, files.length, new int[] { files.length });
+    }
+
+    int size() {
+        return count;
+    }
+
+    /**
+     * Returns a snapshot holding these entries followed by those of
+     * {@code chunk}. This snapshot is left unchanged. Not thread safe, callers
+     * append from a single thread.
+     */
+    FileAttributeSnapshot append(FileAttributeSnapshot chunk) {
+        int needed = count + chunk.count;
+        if (chunk.count == 0) {
+            return this;
+        }
+        if (needed <= files.length && claimed[0] == count) {
+            System.arraycopy(chunk.files, 0, files, count, chunk.count);
+            System.arraycopy(chunk.sizes, 0, sizes, count, chunk.count);
+            System.arraycopy(chunk.mtimes, 0, mtimes, count, chunk.count);
+            System.arraycopy(chunk.flags, 0, flags, count, chunk.count);
+            claimed[0] = needed;
+            return new FileAttributeSnapshot(files, sizes, mtimes, flags, needed, claimed);
+        }
+        int capacity = Math.max(needed, count * 2);
+        File[] newFiles = Arrays.copyOf(files, capacity);
+        long[] newSizes = Arrays.copyOf(sizes, capacity);
+        long[] newMtimes = Arrays.copyOf(mtimes, capacity);
+        int[] newFlags = Arrays.copyOf(flags, capacity);
+        System.arraycopy(chunk.files, 0, newFiles, count, chunk.count);
+        System.arraycopy(chunk.sizes, 0, newSizes, count, chunk.count);
+        System.arraycopy(chunk.mtimes, 0, newMtimes, count, chunk.count);
+        System.arraycopy(chunk.flags, 0, newFlags, count, chunk.count);
+        return new FileAttributeSnapshot(newFiles, newSizes, newMtimes, newFlags, needed, new int[] { needed });
+    }
+
+    File getFile(int index) {
+        return files[index];
+    }
+
+    long getLength(int index) {
+        return sizes[index];
+    }
+
+    long getLastModified(int index) {
+        return mtimes[index];
+    }
+
+    int getFlags(int index) {
+        return flags[index];
+    }
+
+    boolean is(int index, int flag) {
+        return (flags[index] & flag) != 0;
+    }
+
+    /**
+     * Returns a copy of this snapshot with the attributes of the given
+     * {@link #UNREAD} entries filled in. Does filesystem I/O, call it off the
+     * EDT.
+     */
+    FileAttributeSnapshot withAttributesRead(int[] indexes, int length) {
+        File[] newFiles = Arrays.copyOf(files, count);
+        long[] newSizes = Arrays.copyOf(sizes, count);
+        long[] newMtimes = Arrays.copyOf(mtimes, count);
+        int[] newFlags = Arrays.copyOf(flags, count);
+        for (int i = 0; i < length; i++) {
+            int index = indexes[i];
+            newFlags[index] = readOrEmpty(newFiles[index], newSizes, newMtimes, index);
+        }
+        return new FileAttributeSnapshot(newFiles, newSizes, newMtimes, newFlags, count, new int[] { count });
+    }
+
+    /**
+     * Returns a copy of this snapshot where entry {@code rows[i]} is replaced
+     * by entry {@code sourceRows[i]} of {@code source}.
+     */
+    FileAttributeSnapshot withEntries(int[] rows, FileAttributeSnapshot source, int[] sourceRows, int length) {
+        File[] newFiles = Arrays.copyOf(files, count);
+        long[] newSizes = Arrays.copyOf(sizes, count);
+        long[] newMtimes = Arrays.copyOf(mtimes, count);
+        int[] newFlags = Arrays.copyOf(flags, count);
+        for (int i = 0; i < length; i++) {
+            int row = rows[i];
+            int sourceRow = sourceRows[i];
+            newFiles[row] = source.files[sourceRow];
+            newSizes[row] = source.sizes[sourceRow];
+            newMtimes[row] = source.mtimes[sourceRow];
+            newFlags[row] = source.flags[sourceRow];
+        }
+        return new FileAttributeSnapshot(newFiles, newSizes, newMtimes, newFlags, count, new int[] { count });
+    }
+
+    /**
+     * Returns a copy of this snapshot where the length of entry
+     * {@code rows[i]} is {@code lengths[i]}.
+     */
+    FileAttributeSnapshot withLengths(int[] rows, long[] lengths, int length) {
+        long[] newSizes = Arrays.copyOf(sizes, count);
+        for (int i = 0; i < length; i++) {
+            newSizes[rows[i]] = lengths[i];
+        }
+        return new FileAttributeSnapshot(Arrays.copyOf(files, count), newSizes, Arrays.copyOf(mtimes, count),
+                Arrays.copyOf(flags, count), count, new int[] { count });
+    }
+
+    /**
+     * Returns a snapshot of the entries at {@code indexes}, in that order.
+     */
+    FileAttributeSnapshot select(int[] indexes, int length) {
+        File[] newFiles = new File[length];
+        long[] newSizes = new long[length];
+        long[] newMtimes = new long[length];
+        int[] newFlags = new int[length];
+        for (int i = 0; i < length; i++) {
+            int index = indexes[i];
+            newFiles[i] = files[index];
+            newSizes[i] = sizes[index];
+            newMtimes[i] = mtimes[index];
+            newFlags[i] = flags[index];
+        }
+        return new FileAttributeSnapshot(newFiles, newSizes, newMtimes, newFlags, length, new int[] { length });
+    }
+
+    static final class Builder {
+        private File[] files;
+        private long[] sizes;
+        private long[] mtimes;
+        private int[] flags;
+        private int count;
+        private boolean skipHidden;
+        private FileNameFilter filter;
+
+        Builder(int capacity) {
+            this(capacity, false, null);
+        }
+
+        /**
+         * @param filter entries whose name it rejects are kept but their
+         *        attributes are not read, may be null
+         */
+        Builder(int capacity, boolean skipHidden, FileNameFilter filter) {
+            files = new File[capacity];
+            sizes = new long[capacity];
+            mtimes = new long[capacity];
+            flags = new int[capacity];
+            this.skipHidden = skipHidden;
+            this.filter = filter;
+        }
+
+        int size() {
+            return count;
+        }
+
+        void add(File file) {
+            if (count == files.length) {
+                int capacity = Math.max(16, count * 2);
+                files = Arrays.copyOf(files, capacity);
+                sizes = Arrays.copyOf(sizes, capacity);
+                mtimes = Arrays.copyOf(mtimes, capacity);
+                flags = Arrays.copyOf(flags, capacity);
+            }
+            files[count] = file;
+            if (filter != null && !filter.accept(file.getName())) {
+                sizes[count] = 0L;
+                mtimes[count] = 0L;
+                flags[count] = UNREAD | (!DOS_ONLY && file.getName().startsWith(".") ? HIDDEN : 0);
+            } else {
+                flags[count] = readOrEmpty(file, sizes, mtimes, count);
+            }
+            if (!skipHidden || (flags[count] & HIDDEN) == 0) {
+                count++;
+            }
+        }
+
+        FileAttributeSnapshot build() {
+            return new FileAttributeSnapshot(files, sizes, mtimes, flags, count, new int[] { count });
+        }
+    }
+
+    private static int readOrEmpty(File file, long[] sizes, long[] mtimes, int index) {
+        try {
+            return readAttributes(file.toPath(), sizes, mtimes, index);
+        } catch (IOException | RuntimeException e) {
+            // vanished or unreadable entry, keep it with empty attributes like File does
+            sizes[index] = 0L;
+            mtimes[index] = 0L;
+            return 0;
+        }
+    }
+
+    private static int readAttributes(Path path, long[] sizes, long[] mtimes, int index) throws IOException {
+        BasicFileAttributes attrs;
+        int bits;
+        if (POSIX) {
+            PosixFileAttributes posix = Files.readAttributes(path, PosixFileAttributes.class);
+            attrs = posix;
+            bits = posixAccess(path, posix);
+        } else if (DOS) {
+            DosFileAttributes dos = Files.readAttributes(path, DosFileAttributes.class);
+            attrs = dos;
+            bits = READABLE | EXECUTABLE | (dos.isReadOnly() ? 0 : WRITABLE) | (dos.isHidden() ? HIDDEN : 0);
+        } else {
+            attrs = Files.readAttributes(path, BasicFileAttributes.class);
+            bits = (Files.isReadable(path) ? READABLE : 0) | (Files.isWritable(path) ? WRITABLE : 0)
+                    | (Files.isExecutable(path) ? EXECUTABLE : 0);
+        }
+        sizes[index] = attrs.size();
+        mtimes[index] = attrs.lastModifiedTime().toMillis();
+        if (attrs.isDirectory()) {
+            bits |= DIRECTORY;
+        }
+        if (attrs.isRegularFile()) {
+            bits |= FILE;
+        }
+        if (!(attrs instanceof DosFileAttributes)) {
+            Path name = path.getFileName();
+            if (name != null && name.toString().startsWith(".")) {
+                bits |= HIDDEN;
+            }
+        }
+        return bits;
+    }
+
+    private static int posixAccess(Path path, PosixFileAttributes posix) {
+        Set<PosixFilePermission> perms = posix.permissions();
+        if (USER != null && USER.equals(posix.owner().getName())) {
+            return (perms.contains(PosixFilePermission.OWNER_READ) ? READABLE : 0)
+                    | (perms.contains(PosixFilePermission.OWNER_WRITE) ? WRITABLE : 0)
+                    | (perms.contains(PosixFilePermission.OWNER_EXECUTE) ? EXECUTABLE : 0);
+        }
+        // not the owner: group membership is not visible here, so ask the OS
+        return (Files.isReadable(path) ? READABLE : 0) | (Files.isWritable(path) ? WRITABLE : 0)
+                | (Files.isExecutable(path) ? EXECUTABLE : 0);
+    }
+}
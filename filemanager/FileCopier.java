@@ -0,0 +1,352 @@
+package filemanager;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.CancellationException;
+import java.util.zip.CRC32;
+
+/**
+ * Single file copy on {@link FileChannel#transferTo}, which lets the kernel
+ * move the data (sendfile / copy_file_range) instead of pulling it through a
+ * Java buffer.
+ * <p>
+ * Big files can be copied resumably: the target is synced every
+ * {@link #CHECKPOINT} bytes and the offset recorded in a small journal next
+ * to it, so a copy that failed or was killed continues where it stopped.
+ * The journal has two slots written in turn, a torn write only ever loses
+ * the newer checkpoint.
+ */
+final class FileCopier {
+    static final long TRANSFER_CHUNK = 32L << 20;
+    static final long CHECKPOINT = 2 * TRANSFER_CHUNK;
+    static final long RESUMABLE_THRESHOLD = Long.getLong("filemanager.copy.resumableThreshold", 1L << 30);
+    private static final int FALLBACK_BUFFER = 1 << 20;
+
+    private static final int JOURNAL_MAGIC = 0x464d524a;
+    private static final int JOURNAL_VERSION = 1;
+    private static final int JOURNAL_RECORD = 40;
+    private static final int JOURNAL_SLOT = 64;
+
+    private FileCopier() {
+    }
+
+    /**
+     * Copies the contents of {@code source} over {@code target}, creating it
+     * if needed. Progress is reported once per transferred chunk.
+     *
+     * @throws CancellationException if {@code progress} reports cancellation,
+     *         the partial target is left for the caller to remove
+     */
+    static long copy(File source, File target, IoProgress progress) throws IOException {
+        return copy(source, target, null, progress);
+    }
+
+    /**
+     * Copies like {@link #copy} and verifies the result: the data is hashed
+     * on its way through the copy loop, which then copies through a buffer
+     * instead of {@code transferTo}, and the target is read back from disk
+     * once and compared. Reports the copied and the read back bytes.
+     *
+     * @return the algorithm and the checksum, e.g. {@code CRC32C 1a2b3c4d}
+     * @throws IOException also if the copy differs from the source
+     */
+    static String copyVerified(File source, File target, String algorithm, IoProgress progress)
+            throws IOException {
+        ContentHash hash = ContentHash.create(algorithm);
+        copy(source, target, hash, progress);
+        return verify(target, hash, progress);
+    }
+
+    /**
+     * Compares {@code target} with the hash of what was written to it.
+     *
+     * @return the algorithm and the checksum
+     */
+    static String verify(File target, ContentHash written, IoProgress progress) throws IOException {
+        String expected = written.finish();
+        String actual = ContentHash.of(target.toPath(), written.getAlgorithm(), progress);
+        if (!expected.equals(actual)) {
+            throw new IOException("Verification failed, " + written.getAlgorithm() + " of " + target + " is "
+                    + actual + " instead of " + expected);
+        }
+        return written.getAlgorithm() + " " + expected;
+    }
+
+    private static long copy(File source, File target, ContentHash hash, IoProgress progress) throws IOException {
+        try (FileChannel in = FileChannel.open(source.toPath(), StandardOpenOption.READ);
+                FileChannel out = FileChannel.open(target.toPath(), StandardOpenOption.WRITE,
+                        StandardOpenOption.CREATE)) {
+            long size = in.size();
+            // no fallocate in Java, but sizing the target once avoids growing it on every write
+            if (out.size() != size) {
+                out.truncate(size);
+                if (size > 0) {
+                    out.write(ByteBuffer.wrap(new byte[1]), size - 1);
+                }
+            }
+            long position = transfer(in, out, 0, size, hash, progress);
+            if (position < size) {
+                out.truncate(position);
+            }
+            if (hash != null) {
+                // on disk before it is read back
+                out.force(true);
+            }
+            return position;
+        }
+    }
+
+    /**
+     * Copies like {@link #copy}, but resumes from the journal of an earlier,
+     * interrupted copy of the same source to {@code target} if there is one
+     * and its last checkpointed chunk still matches the source. The resumed
+     * bytes are reported as progress up front. The journal is removed once
+     * the copy is complete; on a failure or cancel it is left behind with
+     * the partial target.
+     *
+     * @param hash gets the whole copied data, resumed part included, may be
+     *        null
+     */
+    static long copyResumable(File source, File target, ContentHash hash, IoProgress progress) throws IOException {
+        Path journalFile = journalOf(target);
+        long[] journal = readJournal(journalFile);
+        try (FileChannel in = FileChannel.open(source.toPath(), StandardOpenOption.READ);
+                FileChannel out = FileChannel.open(target.toPath(), StandardOpenOption.READ,
+                        StandardOpenOption.WRITE, StandardOpenOption.CREATE)) {
+            long size = in.size();
+            long modified = source.lastModified();
+            int sourceHash = source.getAbsolutePath().hashCode();
+            long position = 0;
+            try (FileChannel log = FileChannel.open(journalFile, StandardOpenOption.WRITE, StandardOpenOption.CREATE)) {
+                if (journal != null && journal[0] == sourceHash && journal[1] == size && journal[2] == modified
+                        && journal[3] <= out.size() && lastChunkMatches(in, out, journal[3])) {
+                    position = journal[3];
+                } else {
+                    // checkpoints of an earlier attempt must not outlive a fresh start
+                    log.truncate(0);
+                }
+                if (out.size() != size) {
+                    out.truncate(size);
+                    if (size > 0) {
+                        out.write(ByteBuffer.wrap(new byte[1]), size - 1);
+                    }
+                }
+                progress.advance(position);
+                if (hash != null && position > 0) {
+                    // the resumed part did not pass through this copy loop
+                    hashRange(in, 0, position, hash);
+                }
+                int checkpoints = 0;
+                while (position < size) {
+                    long end = Math.min(size, (position / CHECKPOINT + 1) * CHECKPOINT);
+                    long copied = transfer(in, out, position, end, hash, progress);
+                    // the data has to be on disk before the journal claims it is
+                    out.force(false);
+                    writeJournal(log, checkpoints++ % 2, sourceHash, size, modified, copied);
+                    if (copied < end) {
+                        out.truncate(copied);
+                        position = copied;
+                        break;
+                    }
+                    position = end;
+                }
+            }
+            // closed first, Windows does not delete open files
+            Files.deleteIfExists(journalFile);
+            return position;
+        }
+    }
+
+    /**
+     * Returns whether {@code target} is the partial copy of {@code source}
+     * that {@link #copyResumable} would continue.
+     */
+    static boolean canResume(File source, File target) {
+        long[] journal;
+        try {
+            journal = readJournal(journalOf(target));
+        } catch (IOException e) {
+            return false;
+        }
+        return journal != null && target.isFile() && journal[0] == source.getAbsolutePath().hashCode()
+                && journal[1] == source.length() && journal[2] == source.lastModified();
+    }
+
+    /** Removes a partial resumable copy and its journal. */
+    static void discard(File target) {
+        target.delete();
+        journalOf(target).toFile().delete();
+    }
+
+    private static Path journalOf(File target) {
+        File absolute = target.getAbsoluteFile();
+        return new File(absolute.getParentFile(), "." + absolute.getName() + ".resume").toPath();
+    }
+
+    /**
+     * Copies {@code [position, end)} one transfer chunk at a time, or one
+     * buffer at a time when the data has to be hashed on its way.
+     *
+     * @return the position reached, short of {@code end} if the source
+     *         shrank while copying
+     */
+    private static long transfer(FileChannel in, FileChannel out, long position, long end, ContentHash hash,
+            IoProgress progress) throws IOException {
+        if (hash != null) {
+            return transferHashed(in, out, position, end, hash, progress);
+        }
+        while (position < end) {
+            if (progress.isCancelled()) {
+                throw new CancellationException();
+            }
+            long count = Math.min(TRANSFER_CHUNK, end - position);
+            long transferred = in.transferTo(position, count, out.position(position));
+            if (transferred <= 0) {
+                transferred = copyBuffered(in, out, position, count);
+                if (transferred <= 0) {
+                    // source shrank while copying
+                    break;
+                }
+            }
+            position += transferred;
+            progress.advance(transferred);
+        }
+        return position;
+    }
+
+    private static long transferHashed(FileChannel in, FileChannel out, long position, long end, ContentHash hash,
+            IoProgress progress) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(FALLBACK_BUFFER);
+        while (position < end) {
+            if (progress.isCancelled()) {
+                throw new CancellationException();
+            }
+            buffer.clear();
+            buffer.limit((int) Math.min(FALLBACK_BUFFER, end - position));
+            int read = in.read(buffer, position);
+            if (read <= 0) {
+                // source shrank while copying
+                break;
+            }
+            buffer.flip();
+            hash.update(buffer);
+            while (buffer.hasRemaining()) {
+                out.write(buffer, position + buffer.position());
+            }
+            position += read;
+            progress.advance(read);
+        }
+        return position;
+    }
+
+    private static void hashRange(FileChannel in, long position, long end, ContentHash hash) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(FALLBACK_BUFFER);
+        while (position < end) {
+            buffer.clear();
+            buffer.limit((int) Math.min(FALLBACK_BUFFER, end - position));
+            if (!readFully(in, buffer, position)) {
+                throw new IOException("Source shrank while copying");
+            }
+            buffer.flip();
+            hash.update(buffer);
+            position += buffer.limit();
+        }
+    }
+
+    /** Compares the chunk before {@code offset} in source and target byte by byte. */
+    private static boolean lastChunkMatches(FileChannel in, FileChannel out, long offset) throws IOException {
+        long start = Math.max(0, offset - CHECKPOINT);
+        ByteBuffer expected = ByteBuffer.allocateDirect(FALLBACK_BUFFER);
+        ByteBuffer actual = ByteBuffer.allocateDirect(FALLBACK_BUFFER);
+        for (long position = start; position < offset; position += FALLBACK_BUFFER) {
+            int count = (int) Math.min(FALLBACK_BUFFER, offset - position);
+            expected.clear().limit(count);
+            actual.clear().limit(count);
+            if (!readFully(in, expected, position) || !readFully(out, actual, position)) {
+                return false;
+            }
+            expected.flip();
+            actual.flip();
+            if (!expected.equals(actual)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void writeJournal(FileChannel log, int slot, int sourceHash, long size, long modified,
+            long offset) throws IOException {
+        ByteBuffer record = ByteBuffer.allocate(JOURNAL_RECORD);
+        record.putInt(JOURNAL_MAGIC).putInt(JOURNAL_VERSION).putInt(sourceHash).putLong(size).putLong(modified)
+                .putLong(offset);
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), 0, record.position());
+        record.putInt((int) crc.getValue());
+        record.flip();
+        while (record.hasRemaining()) {
+            log.write(record, slot * JOURNAL_SLOT + record.position());
+        }
+        log.force(false);
+    }
+
+    /**
+     * Returns the newest intact checkpoint of a journal as source path hash,
+     * source size, source modification time and offset, or null if there is
+     * none.
+     */
+    private static long[] readJournal(Path journalFile) throws IOException {
+        if (!Files.isRegularFile(journalFile)) {
+            return null;
+        }
+        byte[] bytes = Files.readAllBytes(journalFile);
+        long[] newest = null;
+        for (int slot = 0; slot < 2 && slot * JOURNAL_SLOT + JOURNAL_RECORD <= bytes.length; slot++) {
+            ByteBuffer record = ByteBuffer.wrap(bytes, slot * JOURNAL_SLOT, JOURNAL_RECORD).slice();
+            CRC32 crc = new CRC32();
+            crc.update(bytes, slot * JOURNAL_SLOT, JOURNAL_RECORD - 4);
+            if (record.getInt(0) != JOURNAL_MAGIC || record.getInt(4) != JOURNAL_VERSION
+                    || record.getInt(JOURNAL_RECORD - 4) != (int) crc.getValue()) {
+                continue;
+            }
+            long offset = record.getLong(28);
+            if (newest == null || offset > newest[3]) {
+                newest = new long[] { record.getInt(8), record.getLong(12), record.getLong(20), offset };
+            }
+        }
+        return newest;
+    }
+
+    private static long copyBuffered(FileChannel in, FileChannel out, long position, long count) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocateDirect((int) Math.min(FALLBACK_BUFFER, count));
+        long copied = 0;
+        while (copied < count) {
+            buffer.clear();
+            if (buffer.remaining() > count - copied) {
+                buffer.limit((int) (count - copied));
+            }
+            int read = in.read(buffer, position + copied);
+            if (read <= 0) {
+                break;
+            }
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                copied += out.write(buffer, position + copied);
+            }
+        }
+        return copied;
+    }
+}
@@ -15,6 +15,7 @@ import java.awt.event.*;
 import java.awt.image.*;
 import java.awt.EventQueue;
 import java.awt.Insets;
+import java.awt.Rectangle;
 
 import java.beans.PropertyChangeEvent;
 import java.beans.PropertyChangeListener;
@@ -29,12 +30,27 @@ import javax.swing.SwingWorker.*;
 
 import javax.imageio.ImageIO;
 
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
 import java.util.List;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.ArrayList;
 
 import java.io.*;
 import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
 import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
 import java.nio.file.Path;
@@ -48,99 +64,41 @@ import java.util.zip.ZipInputStream;
 
 import java.net.URL;
 
-class FileTableModel extends AbstractTableModel {
+/**
+ * Renders the Size column: plain lengths for files, the recursive size and
+ * file count for directories, with a marker while they are still counted.
+ */
+class FileSizeCellRenderer extends DefaultTableCellRenderer {
 
-    private File[] files;
-    private FileSystemView fileSystemView = FileSystemView.getFileSystemView();
-    private String[] columns = { "Icon", "File", "Path/Name", "Size", "Last Modified", "R", "W", "E", "D", "F", };
-
-    FileTableModel() {
-        this(new File[0]);
-    }
-
-    FileTableModel(File[] files) {
-        this.files = files;
-    }
-
-    public Object getValueAt(int row, int column) {
-        File file = files[row];
-        switch (column) {
-        case 0:
-            return fileSystemView.getSystemIcon(file);
-        case 1:
-            return fileSystemView.getSystemDisplayName(file);
-        case 2:
-            return file.getPath();
-        case 3:
-            return file.length();
-        case 4:
-            return file.lastModified();
-        case 5:
-            return file.canRead();
-        case 6:
-            return file.canWrite();
-        case 7:
-            return file.canExecute();
-        case 8:
-            return file.isDirectory();
-        case 9:
-            return file.isFile();
-        default:
-            System.err.println("Error");
-        }
-        return "";
-    }
-
-    public int getColumnCount() {
-        return columns.length;
+    FileSizeCellRenderer() {
+        setHorizontalAlignment(JLabel.RIGHT);
     }
 
-    public Class<?> getColumnClass(int column) {
-        switch (column) {
-        case 0:
-            return ImageIcon.class;
-        case 3:
-            return Long.class;
-        case 4:
-            return Date.class;
-        case 5:
-        case 6:
-        case 7:
-        case 8:
-        case 9:
-            return Boolean.class;
+    @Override
+    protected void setValue(Object value) {
+        if (value instanceof DirectorySizeService.DirectorySize) {
+            setText(format((DirectorySizeService.DirectorySize) value));
+        } else {
+            setText(value == null ? "" : value.toString());
         }
-        return String.class;
-    }
-
-    public String getColumnName(int column) {
-        return columns[column];
-    }
-
-    public int getRowCount() {
-        return files.length;
-    }
-
-    public File getFile(int row) {
-        return files[row];
     }
 
-    public void setFiles(File[] files) {
-        this.files = files;
-        fireTableDataChanged();
+    static String format(DirectorySizeService.DirectorySize size) {
+        return size.bytes + (size.complete ? "" : "+") + " (" + size.files + " files"
+                + (size.complete ? ")" : ", scanning)");
     }
 }
 
 class FileTreeCellRenderer extends DefaultTreeCellRenderer {
 
-    private FileSystemView fileSystemView;
+    private SystemIconCache iconCache;
 
     private JLabel label;
 
-    FileTreeCellRenderer() {
+    FileTreeCellRenderer(SystemIconCache iconCache) {
         label = new JLabel();
         label.setOpaque(true);
-        fileSystemView = FileSystemView.getFileSystemView();
+        this.iconCache = iconCache;
     }
 
     @Override
@@ -149,8 +107,8 @@ class FileTreeCellRenderer extends DefaultTreeCellRenderer {
 
         DefaultMutableTreeNode node = (DefaultMutableTreeNode) value;
         File file = (File) node.getUserObject();
-        label.setIcon(fileSystemView.getSystemIcon(file));
-        label.setText(fileSystemView.getSystemDisplayName(file));
+        label.setIcon(iconCache.getIcon(file, true));
+        label.setText(iconCache.getDisplayName(file));
         label.setToolTipText(file.getPath());
 
         if (selected) {
@@ -169,34 +127,92 @@ public class FileManager {
     public static final String APP_TITLE = "File Manager";
     private Desktop desktop;
     private FileSystemView fileSystemView;
+    private SystemIconCache iconCache;
 
     private File currentFile;
-    private File copyFileCtn;
+    private List<File> copiedFiles;
+    // the next paste moves copiedFiles instead of copying them
+    private boolean filesCut;
 
     private JPanel gui;
     private JTree tree;
     private DefaultTreeModel treeModel;
+    private FileTreeIndex treeIndex;
 
     private JTable table;
     private JProgressBar progressBar;
     private FileTableModel fileTableModel;
+    private DirectoryWatcher watcher;
+    private DirectorySizeService sizeService = new DirectorySizeService();
+    // directory listed in the table, and whether the table holds a watch on it
+    private File tableDirectory;
+    private boolean tableWatched;
+    private List<Runnable> pendingChanges = new ArrayList<Runnable>();
     private ListSelectionListener listSelectionListener;
     private boolean cellSizesSet = false;
     private int rowIconPadding = 6;
+    private SwingWorker<Void, FileAttributeSnapshot> listingWorker;
+    private Map<File, Boolean> hasChildrenHints = new ConcurrentHashMap<File, Boolean>();
+    // staged trees purged by this session, and directories already checked for ones left by earlier sessions
+    private final Set<Path> purging = Collections.newSetFromMap(new ConcurrentHashMap<Path, Boolean>());
+    private final Set<File> leftoversChecked = Collections.newSetFromMap(new ConcurrentHashMap<File, Boolean>());
+
+    private static final int HINT_PROBE_LIMIT = 1000;
+    private static final Path INDEX_FILE = Paths.get(System.getProperty("filemanager.index.file",
+            System.getProperty("user.home") + File.separator + ".filemanager" + File.separator + "name-index.bin"));
+    private static final long INDEX_MAX_AGE_MILLIS = 24L * 60 * 60 * 1000;
+    private static final int INDEX_MAX_WATCHES = Integer.getInteger("filemanager.index.maxWatches", 8192);
+    private static final int SEARCH_LIMIT = 10000;
+    // applies watcher batches to the name index in order, waiting out searches off the EDT
+    private static final ExecutorService INDEX_UPDATER = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "name-index-update");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+    private static final Path LISTING_CACHE_FILE = Paths.get(System.getProperty("filemanager.listingCache.file",
+            System.getProperty("user.home") + File.separator + ".filemanager" + File.separator + "listing-cache.bin"));
 
     private JButton openFile;
     private JButton deleteFile;
     private JButton newFile;
     private JButton copyFile;
+    private JButton cutFile;
+    private JCheckBox verifyCopies;
     private JButton pasteFile;
     private JButton zipFile;
     private JButton unzipFile;
     private JButton cancelBtn;
 
+    private OperationScheduler scheduler = new OperationScheduler();
+    private DefaultListModel<OperationScheduler.Operation> operationListModel;
+    private JList<OperationScheduler.Operation> operationList;
+
+    private JTextField filterField;
+    private FileTableSorter tableSorter;
+
+    // null if it can not be opened, listings then always come from disk
+    private ListingCache listingCache;
+    private volatile FileNameIndex nameIndex;
+    private DirectoryWatcher indexWatcher;
+    private final List<File> indexWatched = new ArrayList<File>();
+    private boolean indexing;
+    private JTextField searchField;
+    private JLabel searchStatus;
+    private SwingWorker<FileAttributeSnapshot, Void> searchWorker;
+    private JTextField contentField;
+    // content or duplicate search whose results the table shows
+    private SwingWorker<?, ?> resultsWorker;
+
     private JLabel fileName;
     private JTextField path;
     private JLabel date;
     private JLabel size;
+    private JLabel verified;
+    // what verified copies and moves checked, by target
+    private final Map<File, String> verifications = new ConcurrentHashMap<File, String>();
     private JCheckBox readable;
     private JCheckBox writable;
     private JCheckBox executable;
@@ -213,20 +229,52 @@ public class FileManager {
             gui.setBorder(new EmptyBorder(5, 5, 5, 5));
 
             fileSystemView = FileSystemView.getFileSystemView();
+            iconCache = new SystemIconCache(fileSystemView, 512, 50000);
+            try {
+                listingCache = ListingCache.open(LISTING_CACHE_FILE, ListingCache.DEFAULT_MAX_BYTES);
+            } catch (IOException e) {
+                listingCache = null;
+            }
+            sizeService.addListener(new DirectorySizeService.Listener() {
+                @Override
+                public void sizesChanged(Map<File, DirectorySizeService.DirectorySize> sizes) {
+                    if (fileTableModel != null) {
+                        fileTableModel.setDirectorySizes(sizes);
+                    }
+                    if (currentFile != null && sizes.containsKey(currentFile)) {
+                        size.setText(FileSizeCellRenderer.format(sizes.get(currentFile)));
+                    }
+                }
+            });
+            watcher = new DirectoryWatcher(new DirectoryWatcher.Listener() {
+                @Override
+                public void directoryChanged(File directory, FileAttributeSnapshot changed, Set<File> removed) {
+                    applyDirectoryChanges(directory, changed, removed);
+                }
+
+                @Override
+                public void directoryOverflowed(File directory) {
+                    if (directory.equals(tableDirectory)) {
+                        showDirectory(directory);
+                    }
+                }
+            });
             desktop = Desktop.getDesktop();
 
             JPanel detailView = new JPanel(new BorderLayout(3, 3));
 
             table = new JTable();
+            table.setDefaultRenderer(Long.class, new FileSizeCellRenderer());
             table.setSelectionMode(ListSelectionModel.MULTIPLE_INTERVAL_SELECTION);
-            table.setAutoCreateRowSorter(true);
             table.setShowVerticalLines(false);
 
             listSelectionListener = new ListSelectionListener() {
                 @Override
                 public void valueChanged(ListSelectionEvent lse) {
                     int row = table.getSelectionModel().getLeadSelectionIndex();
-                    setFileDetails(((FileTableModel) table.getModel()).getFile(row));
+                    if (row >= 0 && row < table.getRowCount()) {
+                        setFileDetails(fileTableModel.getFile(table.convertRowIndexToModel(row)));
+                    }
                 }
             };
             table.getSelectionModel().addListSelectionListener(listSelectionListener);
@@ -235,6 +283,73 @@ public class FileManager {
             tableScroll.setPreferredSize(new Dimension((int) d.getWidth(), (int) d.getHeight() / 2));
             detailView.add(tableScroll, BorderLayout.CENTER);
 
+            JPanel filterPanel = new JPanel(new BorderLayout(3, 3));
+            filterPanel.add(new JLabel("Filter"), BorderLayout.WEST);
+            filterField = new JTextField();
+            filterField.setToolTipText("Name contains, or a glob like *.txt");
+            filterField.getDocument().addDocumentListener(new DocumentListener() {
+                public void insertUpdate(DocumentEvent de) {
+                    filterChanged();
+                }
+
+                public void removeUpdate(DocumentEvent de) {
+                    filterChanged();
+                }
+
+                public void changedUpdate(DocumentEvent de) {
+                    filterChanged();
+                }
+            });
+            filterPanel.add(filterField, BorderLayout.CENTER);
+
+            JPanel searchPanel = new JPanel(new BorderLayout(3, 3));
+            searchPanel.add(new JLabel("Search"), BorderLayout.WEST);
+            searchField = new JTextField();
+            searchField.setToolTipText("Name contains, or a glob like *.txt, anywhere below the indexed directories");
+            searchField.getDocument().addDocumentListener(new DocumentListener() {
+                public void insertUpdate(DocumentEvent de) {
+                    search();
+                }
+
+                public void removeUpdate(DocumentEvent de) {
+                    search();
+                }
+
+                public void changedUpdate(DocumentEvent de) {
+                    search();
+                }
+            });
+            searchPanel.add(searchField, BorderLayout.CENTER);
+            JPanel searchControls = new JPanel(new FlowLayout(FlowLayout.RIGHT, 3, 0));
+            searchStatus = new JLabel();
+            searchControls.add(searchStatus);
+            JButton indexButton = new JButton("Index...");
+            indexButton.addActionListener(new ActionListener() {
+                public void actionPerformed(ActionEvent ae) {
+                    chooseIndexRoots();
+                }
+            });
+            searchControls.add(indexButton);
+            searchPanel.add(searchControls, BorderLayout.EAST);
+
+            JPanel contentPanel = new JPanel(new BorderLayout(3, 3));
+            contentPanel.add(new JLabel("Contents"), BorderLayout.WEST);
+            contentField = new JTextField();
+            contentField.setToolTipText("Text to find in the files below the selected directory, "
+                    + "alternatives separated by |, Enter to start");
+            contentField.addActionListener(new ActionListener() {
+                public void actionPerformed(ActionEvent ae) {
+                    searchContents();
+                }
+            });
+            contentPanel.add(contentField, BorderLayout.CENTER);
+
+            JPanel namePanels = new JPanel(new GridLayout(0, 1, 3, 3));
+            namePanels.add(filterPanel);
+            namePanels.add(searchPanel);
+            namePanels.add(contentPanel);
+            detailView.add(namePanels, BorderLayout.NORTH);
+
             DefaultMutableTreeNode root = new DefaultMutableTreeNode();
             treeModel = new DefaultTreeModel(root);
 
@@ -246,23 +361,62 @@ public class FileManager {
                 }
             };
 
+            treeModel.setAsksAllowsChildren(true);
             File[] roots = fileSystemView.getRoots();
             for (File fileSystemRoot : roots) {
-                DefaultMutableTreeNode node = new DefaultMutableTreeNode(fileSystemRoot);
-                root.add(node);
-
-                File[] files = fileSystemView.getFiles(fileSystemRoot, true);
-                for (File file : files) {
-                    if (file.isDirectory()) {
-                        node.add(new DefaultMutableTreeNode(file));
-                    }
-                }
+                root.add(new FileTreeNode(fileSystemRoot));
             }
+            treeIndex = new FileTreeIndex(treeModel);
 
             tree = new JTree(treeModel);
             tree.setRootVisible(false);
             tree.addTreeSelectionListener(treeSelectionListener);
-            tree.setCellRenderer(new FileTreeCellRenderer());
+            tree.addTreeWillExpandListener(new TreeWillExpandListener() {
+                @Override
+                public void treeWillExpand(TreeExpansionEvent tee) {
+                    Object node = tee.getPath().getLastPathComponent();
+                    if (node instanceof FileTreeNode && ((FileTreeNode) node).getState() == FileTreeNode.UNLOADED) {
+                        loadTreeChildren((FileTreeNode) node);
+                    }
+                }
+
+                @Override
+                public void treeWillCollapse(TreeExpansionEvent tee) {
+                }
+            });
+            // expanded directories are watched so their children stay current
+            tree.addTreeExpansionListener(new TreeExpansionListener() {
+                @Override
+                public void treeExpanded(TreeExpansionEvent tee) {
+                    Object node = tee.getPath().getLastPathComponent();
+                    if (node instanceof FileTreeNode && fileSystemView.isFileSystem(((FileTreeNode) node).getFile())) {
+                        watcher.watch(((FileTreeNode) node).getFile());
+                    }
+                }
+
+                @Override
+                public void treeCollapsed(TreeExpansionEvent tee) {
+                    Object node = tee.getPath().getLastPathComponent();
+                    if (node instanceof FileTreeNode) {
+                        watcher.unwatch(((FileTreeNode) node).getFile());
+                    }
+                }
+            });
+            tree.setCellRenderer(new FileTreeCellRenderer(iconCache));
+            iconCache.addListener(new SystemIconCache.Listener() {
+                @Override
+                public void systemInfoResolved(Set<Object> keys) {
+                    for (int i = 0; i < tree.getRowCount(); i++) {
+                        DefaultMutableTreeNode node = (DefaultMutableTreeNode) tree.getPathForRow(i)
+                                .getLastPathComponent();
+                        File file = (File) node.getUserObject();
+                        if (keys.contains(file) || keys.contains(iconCache.iconKey(file, true))) {
+                            Rectangle bounds = tree.getRowBounds(i);
+                            tree.repaint(bounds);
+                        }
+                    }
+                }
+            });
             tree.expandRow(0);
             JScrollPane treeScroll = new JScrollPane(tree);
 
@@ -294,6 +448,9 @@ public class FileManager {
             fileDetailsLabels.add(new JLabel("File size", JLabel.TRAILING));
             size = new JLabel();
             fileDetailsValues.add(size);
+            fileDetailsLabels.add(new JLabel("Verified", JLabel.TRAILING));
+            verified = new JLabel();
+            fileDetailsValues.add(verified);
             fileDetailsLabels.add(new JLabel("Type", JLabel.TRAILING));
 
             JPanel flags = new JPanel(new FlowLayout(FlowLayout.LEADING, 4, 0));
@@ -346,22 +503,35 @@ public class FileManager {
             copyFile.setMnemonic('c');
             copyFile.addActionListener(new ActionListener() {
                 public void actionPerformed(ActionEvent ae) {
-                    if (currentFile != null) {
-                        if (!currentFile.isDirectory())
-                            copyFileCtn = currentFile;
-                        else
-                            showErrorMessage("Can not copy directory. Please choose file to copy", "Choose a file.");
+                    List<File> selected = selectedFiles();
+                    if (!selected.isEmpty()) {
+                        copiedFiles = selected;
+                        filesCut = false;
                     } else
                         showErrorMessage("Choose file to copy.", "Didn't choose a file.");
                 }
             });
             toolBar.add(copyFile);
 
+            cutFile = new JButton("Cut");
+            cutFile.setMnemonic('t');
+            cutFile.addActionListener(new ActionListener() {
+                public void actionPerformed(ActionEvent ae) {
+                    List<File> selected = selectedFiles();
+                    if (!selected.isEmpty()) {
+                        copiedFiles = selected;
+                        filesCut = true;
+                    } else
+                        showErrorMessage("Choose file to move.", "Didn't choose a file.");
+                }
+            });
+            toolBar.add(cutFile);
+
             pasteFile = new JButton("Paste");
             pasteFile.setMnemonic('p');
             pasteFile.addActionListener(new ActionListener() {
                 public void actionPerformed(ActionEvent ae) {
-                    if (copyFileCtn != null)
+                    if (copiedFiles != null)
                         pasteFile();
                     else
                         showErrorMessage("Choose file to paste.", "Didn't choose a file.");
@@ -369,6 +539,11 @@ public class FileManager {
             });
             toolBar.add(pasteFile);
 
+            verifyCopies = new JCheckBox("Verify");
+            verifyCopies.setToolTipText("Checksum copies with " + ContentHash.DEFAULT_ALGORITHM
+                    + " while copying and check them against a read back from disk");
+            toolBar.add(verifyCopies);
+
             JButton renameFile = new JButton("Rename");
             renameFile.setMnemonic('r');
             renameFile.addActionListener(new ActionListener() {
@@ -405,6 +580,15 @@ public class FileManager {
             });
             toolBar.add(unzipFile);
 
+            JButton duplicates = new JButton("Duplicates");
+            duplicates.setToolTipText("Find files with the same contents below the selected directory");
+            duplicates.addActionListener(new ActionListener() {
+                public void actionPerformed(ActionEvent ae) {
+                    findDuplicates();
+                }
+            });
+            toolBar.add(duplicates);
+
             toolBar.addSeparator();
 
             readable = new JCheckBox("Read  ");
@@ -430,33 +614,112 @@ public class FileManager {
             gui.add(splitPane, BorderLayout.CENTER);
 
             JPanel output = new JPanel(new BorderLayout(3, 3));
+            operationListModel = new DefaultListModel<OperationScheduler.Operation>();
+            operationList = new JList<OperationScheduler.Operation>(operationListModel);
+            operationList.setVisibleRowCount(3);
+            operationList.addListSelectionListener(new ListSelectionListener() {
+                @Override
+                public void valueChanged(ListSelectionEvent lse) {
+                    updateCancelButton();
+                }
+            });
+            output.add(new JScrollPane(operationList), BorderLayout.CENTER);
+
+            JPanel operationControls = new JPanel(new FlowLayout(FlowLayout.RIGHT, 3, 0));
             progressBar = new JProgressBar();
-            output.add(progressBar, BorderLayout.EAST);
+            operationControls.add(progressBar);
             progressBar.setVisible(false);
+            cancelBtn = new JButton("Cancel");
+            cancelBtn.setEnabled(false);
+            cancelBtn.addActionListener(new ActionListener() {
+                public void actionPerformed(ActionEvent ae) {
+                    OperationScheduler.Operation operation = getCancellableOperation();
+                    if (operation != null) {
+                        operation.cancel();
+                    }
+                }
+            });
+            operationControls.add(cancelBtn);
+            output.add(operationControls, BorderLayout.EAST);
+
+            scheduler.addListener(new OperationScheduler.Listener() {
+                @Override
+                public void operationsChanged() {
+                    showOperations();
+                }
+            });
 
             gui.add(output, BorderLayout.SOUTH);
 
+            indexWatcher = new DirectoryWatcher(new DirectoryWatcher.Listener() {
+                @Override
+                public void directoryChanged(File directory, FileAttributeSnapshot changed, Set<File> removed) {
+                    updateNameIndex(directory, changed, removed);
+                }
+
+                @Override
+                public void directoryOverflowed(File directory) {
+                    // lost events are caught up with by the next rebuild
+                }
+            });
+            if (Files.isRegularFile(INDEX_FILE)) {
+                startIndexing(null);
+            }
+            // rebuild a stale index now and then, for changes the watches do not reach
+            new Timer(60 * 60 * 1000, new ActionListener() {
+                public void actionPerformed(ActionEvent ae) {
+                    FileNameIndex index = nameIndex;
+                    if (index != null && System.currentTimeMillis() - index.getBuiltAt() > INDEX_MAX_AGE_MILLIS) {
+                        startIndexing(index.getRoots());
+                    }
+                }
+            }).start();
         }
         return gui;
     }
 
-    public void showRootFile() {
-        tree.setSelectionInterval(0, 0);
+    private void showOperations() {
+        OperationScheduler.Operation selected = operationList.getSelectedValue();
+        List<OperationScheduler.Operation> operations = scheduler.getOperations();
+        operationListModel.clear();
+        for (OperationScheduler.Operation operation : operations) {
+            // listings come and go too fast to be worth a row
+            if (!operation.isInteractive() || operation.isFinished()) {
+                operationListModel.addElement(operation);
+            }
+        }
+        if (selected != null) {
+            operationList.setSelectedValue(selected, false);
+        }
+        updateCancelButton();
     }
 
-    private TreePath findTreePath(File find) {
-        for (int i = 0; i < tree.getRowCount(); i++) {
-            TreePath treePath = tree.getPathForRow(i);
-            Object object = treePath.getLastPathComponent();
-            DefaultMutableTreeNode node = (DefaultMutableTreeNode) object;
-            File nodeFile = (File) node.getUserObject();
-            if (nodeFile.compareTo(find) == 0) {
-                return treePath;
+    /**
+     * The selected operation if it can still be cancelled, otherwise the
+     * oldest bulk operation that is running or queued.
+     */
+    private OperationScheduler.Operation getCancellableOperation() {
+        OperationScheduler.Operation selected = operationList.getSelectedValue();
+        if (selected != null) {
+            return selected.isFinished() ? null : selected;
+        }
+        for (int i = 0; i < operationListModel.size(); i++) {
+            OperationScheduler.Operation operation = operationListModel.get(i);
+            if (!operation.isFinished()) {
+                return operation;
             }
         }
         return null;
     }
 
+    private void updateCancelButton() {
+        cancelBtn.setEnabled(getCancellableOperation() != null);
+    }
+
+    public void showRootFile() {
+        tree.setSelectionInterval(0, 0);
+    }
+
     private void renameFile() {
         if (currentFile == null) {
             showErrorMessage("No file selected to rename.", "Select File");
@@ -466,28 +729,20 @@ public class FileManager {
         String renameTo = JOptionPane.showInputDialog(gui, "New Name");
         if (renameTo != null) {
             try {
-                TreePath currentPath = null;
-                DefaultMutableTreeNode currentNode = null;
                 boolean directory = currentFile.isDirectory();
-                if (directory) {
-                    currentPath = findTreePath(currentFile);
-                    currentNode = (DefaultMutableTreeNode) currentPath.getLastPathComponent();
-                }
-                TreePath parentPath = findTreePath(currentFile.getParentFile());
-                DefaultMutableTreeNode parentNode = (DefaultMutableTreeNode) parentPath.getLastPathComponent();
+                File parentDirectory = currentFile.getParentFile();
 
-                File renameFile = new File(currentFile.getParentFile(), renameTo);
+                File renameFile = new File(parentDirectory, renameTo);
 
                 boolean renamed = currentFile.renameTo(renameFile);
                 if (renamed) {
                     if (directory) {
-                        DefaultMutableTreeNode newNode = new DefaultMutableTreeNode(renameFile);
-                        treeModel.insertNodeInto(newNode, parentNode, parentNode.getChildCount());
-                        treeModel.removeNodeFromParent(currentNode);
+                        addTreeChild(parentDirectory, renameFile);
+                        removeTreeNode(currentFile);
                     }
                     currentFile = renameFile;
                     setFileDetails(currentFile);
-                    showChildren(parentNode);
+                    refreshDirectory(parentDirectory);
                 } else {
                     String msg = "The file '" + currentFile + "' could not be renamed.";
                     showErrorMessage(msg, "Rename Failed");
@@ -500,26 +755,94 @@ public class FileManager {
     }
 
     private void deleteFile() {
-        if (currentFile == null) {
+        List<File> files = selectedFiles();
+        if (files.isEmpty()) {
             showErrorMessage("No file selected for deleting.", "Select File");
             return;
         }
 
-        int result = JOptionPane.showConfirmDialog(gui, "You want to delete this file?", "Delete File",
-                JOptionPane.ERROR_MESSAGE);
-        if (result == JOptionPane.OK_OPTION) {
-            progressBar.setVisible(true);
-            EventQueue.invokeLater(new Runnable() {
-                @Override
-                public void run() {
-                    new DeleteWorker().execute();
-                }
-            });
-
+        boolean directories = false;
+        for (File file : files) {
+            directories |= file.isDirectory();
+        }
+        String[] options = directories ? new String[] { "Fast Delete", "Delete", "Cancel" }
+                : new String[] { "Delete", "Cancel" };
+        String what = files.size() > 1 ? "these " + files.size() + " items"
+                : directories ? "this folder" : "this file";
+        String message = "You want to delete " + what + "?"
+                + (directories ? "\nFast Delete hides folders at once and removes them in the background." : "");
+        int result = JOptionPane.showOptionDialog(gui, message, "Delete File", JOptionPane.DEFAULT_OPTION,
+                JOptionPane.WARNING_MESSAGE, null, options, options[0]);
+        if (result < 0 || "Cancel".equals(options[result])) {
+            return;
         }
+        if ("Fast Delete".equals(options[result])) {
+            files = fastDelete(files);
+            if (files.isEmpty()) {
+                return;
+            }
+        }
+        progressBar.setVisible(true);
+        progressBar.setValue(0);
+        scheduler.submit(describe("Delete", files), OperationScheduler.BULK, new DeleteWorker(files),
+                parentsOf(files));
         gui.repaint();
     }
 
+    /**
+     * Renames each directory of {@code files} into a hidden staging
+     * directory next to it and purges that in the background.
+     *
+     * @return the files left to delete the slow way: plain files, and
+     *         directories that can not be renamed, e.g. mount points
+     */
+    private List<File> fastDelete(List<File> files) {
+        List<File> remaining = new ArrayList<File>();
+        List<File> staged = new ArrayList<File>();
+        for (File file : files) {
+            if (!file.isDirectory()) {
+                remaining.add(file);
+                continue;
+            }
+            try {
+                Path stage = stage(file.toPath());
+                staged.add(file);
+                scheduler.submit("Purge " + file.getName(), OperationScheduler.BACKGROUND, new PurgeWorker(stage));
+            } catch (IOException e) {
+                remaining.add(file);
+            }
+        }
+        if (!staged.isEmpty()) {
+            filesDeleted(staged);
+            for (File parent : parentsOf(staged)) {
+                refreshDirectory(parent);
+            }
+        }
+        return remaining;
+    }
+
+    /** Removes deleted files from the tree and the table right away. */
+    private void filesDeleted(List<File> files) {
+        Set<File> shown = new HashSet<File>();
+        for (File file : files) {
+            // gone by now, so only the tree knows whether it was a directory
+            removeTreeNode(file);
+            if (file.getParentFile().equals(tableDirectory)) {
+                shown.add(file);
+            }
+        }
+        if (!shown.isEmpty() && fileTableModel != null) {
+            fileTableModel.applyChanges(FileAttributeSnapshot.EMPTY, shown);
+        }
+        int index = table.getSelectionModel().getLeadSelectionIndex();
+        if (index > 0) {
+            table.getSelectionModel().setLeadSelectionIndex(index - 1);
+        } else {
+            table.getSelectionModel().clearSelection();
+            currentFile = null;
+        }
+    }
+
     private void newFile() {
         if (currentFile == null) {
             showErrorMessage("No location selected for new file.", "Select Location");
@@ -560,14 +883,10 @@ public class FileManager {
                     created = file.mkdir();
                 }
                 if (created) {
-                    TreePath parentPath = findTreePath(parentFile);
-                    DefaultMutableTreeNode parentNode = (DefaultMutableTreeNode) parentPath.getLastPathComponent();
-
                     if (file.isDirectory()) {
-                        DefaultMutableTreeNode newNode = new DefaultMutableTreeNode(file);
-                        treeModel.insertNodeInto(newNode, parentNode, parentNode.getChildCount());
+                        addTreeChild(parentFile, file);
                     }
-                    showChildren(parentNode);
+                    refreshDirectory(parentFile);
                 } else {
                     String msg = "The file '" + file + "' could not be created.";
                     showErrorMessage(msg, "Create Failed");
@@ -589,141 +908,52 @@ public class FileManager {
         gui.repaint();
     }
 
-    private void populateFilesList(File dir, ArrayList<String> filesListInDir) throws IOException {
-        File[] files = dir.listFiles();
-        for (File file : files) {
-            if (file.isFile())
-                filesListInDir.add(file.getAbsolutePath());
-            else
-                populateFilesList(file, filesListInDir);
-        }
-    }
-
-    class ZipWorker extends SwingWorker<Boolean, Void> {
-        private File parentFile;
-        private String zipName;
-
-        public ZipWorker() {
-            parentFile = currentFile;
-            if (!parentFile.isDirectory()) {
-                parentFile = parentFile.getParentFile();
-            }
-            zipName = currentFile.getPath();
-
-            addPropertyChangeListener(new PropertyChangeListener() {
-                @Override
-                public void propertyChange(PropertyChangeEvent evt) {
-                    progressBar.setValue(getProgress());
-                }
-            });
-        }
-
-        @Override
+    class ZipWorker extends BatchWorker<File> {
+        private final CompressionPreset preset;
 
-        protected void done() {
-            try {
-                boolean created = get();
-                if (created) {
-                    TreePath parentPath = findTreePath(parentFile);
-                    DefaultMutableTreeNode parentNode = (DefaultMutableTreeNode) parentPath.getLastPathComponent();
-                    showChildren(parentNode);
-                } else {
-                    String msg = "The file '" + currentFile + "' could not be zipped.";
-                    showErrorMessage(msg, "Zipped Failed");
-                }
-            } catch (Throwable t) {
-                showThrowable(t);
+        ZipWorker(List<File> files, CompressionPreset preset) {
+            super(files, "zipped", "Zipped Failed");
+            this.preset = preset;
+            for (File file : files) {
+                // where zipTarget puts the archive
+                touched.add(file.getAbsoluteFile().getParentFile());
             }
-            progressBar.setVisible(false);
         }
 
         @Override
-        protected Boolean doInBackground() throws Exception {
-            if (!currentFile.isDirectory()) {
-                zipName = zipName.substring(0, zipName.lastIndexOf("."));
-                zipName += ".zip";
-                long zipping = 0;
-                try {
-                    FileOutputStream fos = new FileOutputStream(zipName);
-                    ZipOutputStream zos = new ZipOutputStream(fos);
-                    ZipEntry ze = new ZipEntry(currentFile.getName());
-                    zos.putNextEntry(ze);
-                    FileInputStream fis = new FileInputStream(currentFile);
-                    byte[] buffer = new byte[1024];
-                    int len;
-                    while ((len = fis.read(buffer)) > 0) {
-                        zipping += 1024;
-                        int progress = (int) Math.round(((double) zipping / (double) currentFile.length()) * 90);
-                        if (progress < 0)
-                            progress = 0;
-                        setProgress(progress);
-                        zos.write(buffer, 0, len);
-                    }
-                    zos.closeEntry();
-                    zos.close();
-                    fis.close();
-                    fos.close();
-                    return true;
-                } catch (IOException e) {
-                    e.printStackTrace();
-                    return false;
-                }
-            } else {
-                zipName += ".zip";
-                long zipping = 0;
-                try {
-                    ArrayList<String> filesListInDir = new ArrayList<String>();
-                    populateFilesList(currentFile, filesListInDir);
-                    FileOutputStream fos = new FileOutputStream(zipName);
-                    ZipOutputStream zos = new ZipOutputStream(fos);
-                    for (String filePath : filesListInDir) {
-                        ZipEntry ze = new ZipEntry(
-                                filePath.substring(currentFile.getAbsolutePath().length() + 1, filePath.length()));
-                        zos.putNextEntry(ze);
-                        FileInputStream fis = new FileInputStream(filePath);
-                        byte[] buffer = new byte[1024];
-                        int len;
-                        while ((len = fis.read(buffer)) > 0) {
-                            zipping += 1024;
-                            int progress = (int) Math.round(((double) zipping / (double) currentFile.length()) * 90);
-                            if (progress < 0)
-                                progress = 0;
-                            setProgress(progress);
-                            zos.write(buffer, 0, len);
-                        }
-                        zos.closeEntry();
-                        fis.close();
-                    }
-                    zos.close();
-                    fos.close();
-                    return true;
-                } catch (IOException e) {
-                    e.printStackTrace();
-                    return false;
-                }
-            }
+        File apply(File file, FileOperations.SizedProgress progress) throws IOException {
+            FileOperations.zip(file, FileOperations.zipTarget(file), preset, progress);
+            return file;
         }
     }
 
     private void zipFile() {
-        if (currentFile == null) {
+        List<File> files = selectedFiles();
+        if (files.isEmpty()) {
             showErrorMessage("No file selected to zip.", "Select File");
             return;
         }
+        CompressionPreset[] presets = CompressionPreset.values();
+        int choice = JOptionPane.showOptionDialog(gui, "Compression", "Zip", JOptionPane.DEFAULT_OPTION,
+                JOptionPane.QUESTION_MESSAGE, null, presets, CompressionPreset.BALANCED);
+        if (choice < 0) {
+            return;
+        }
+        final CompressionPreset preset = presets[choice];
         progressBar.setVisible(true);
-        EventQueue.invokeLater(new Runnable() {
-            @Override
-            public void run() {
-                new ZipWorker().execute();
-            }
-        });
+        progressBar.setValue(0);
+        scheduler.submit(describe("Zip", files), OperationScheduler.BULK, new ZipWorker(files, preset),
+                parentsOf(files));
         gui.repaint();
     }
 
     class UnzipWorker extends SwingWorker<Boolean, Void> {
+        private final File zip = currentFile;
         private File parentFile;
+        private List<String> selected;
 
-        public UnzipWorker() {
+        public UnzipWorker(List<String> selected) {
+            this.selected = selected;
             parentFile = currentFile;
             if (!parentFile.isDirectory()) {
                 parentFile = parentFile.getParentFile();
@@ -740,57 +970,47 @@ public class FileManager {
         @Override
 
         protected void done() {
+            progressBar.setVisible(false);
+            if (isCancelled()) {
+                // the extracted entries were removed by the unzipper
+                return;
+            }
             try {
                 boolean unzipped = get();
                 if (unzipped) {
-                    TreePath parentPath = findTreePath(parentFile);
-                    DefaultMutableTreeNode parentNode = (DefaultMutableTreeNode) parentPath.getLastPathComponent();
-                    showChildren(parentNode);
+                    refreshDirectory(parentFile);
                 } else {
-                    String msg = "The file '" + currentFile + "' could not be unzipped.";
+                    String msg = "The file '" + zip + "' could not be unzipped.";
                     showErrorMessage(msg, "Unzipped Failed");
                 }
             } catch (Throwable t) {
                 showThrowable(t);
             }
-            progressBar.setVisible(false);
         }
 
         @Override
         protected Boolean doInBackground() throws Exception {
-            String zipFilePath = currentFile.getPath();
-            String destDir = parentFile.getPath();
-            File dir = new File(destDir);
-            if (!dir.exists())
-                dir.mkdirs();
-            FileInputStream fis;
-            byte[] buffer = new byte[1024];
-            long writing = 0;
             try {
-                fis = new FileInputStream(zipFilePath);
-                ZipInputStream zis = new ZipInputStream(fis);
-                ZipEntry ze = zis.getNextEntry();
-                while (ze != null) {
-                    String fileName = ze.getName();
-                    File newFile = new File(destDir + File.separator + fileName);
-                    new File(newFile.getParent()).mkdirs();
-                    FileOutputStream fos = new FileOutputStream(newFile);
-                    int len;
-                    while ((len = zis.read(buffer)) > 0) {
-                        writing += 1024;
-                        int progress = (int) Math.round(((double) writing / (double) currentFile.length()) * 40);
-                        if (progress < 0)
-                            progress = 0;
-                        setProgress(progress);
-                        fos.write(buffer, 0, len);
+                FileOperations.unzip(zip, parentFile, selected, new FileOperations.SizedProgress() {
+                    private long total = 1;
+                    private long writing = 0;
+
+                    @Override
+                    public void total(long bytes) {
+                        total = Math.max(1, bytes);
                     }
-                    fos.close();
-                    zis.closeEntry();
-                    ze = zis.getNextEntry();
-                }
-                zis.closeEntry();
-                zis.close();
-                fis.close();
+
+                    @Override
+                    public synchronized void advance(long bytes) {
+                        writing += bytes;
+                        setProgress((int) Math.min(100, writing * 100 / total));
+                    }
+
+                    @Override
+                    public boolean isCancelled() {
+                        return UnzipWorker.this.isCancelled();
+                    }
+                });
                 return true;
             } catch (IOException e) {
                 e.printStackTrace();
@@ -810,46 +1030,88 @@ public class FileManager {
             return;
         }
 
+        List<String> names;
+        try {
+            names = FileOperations.listEntries(currentFile);
+        } catch (IOException e) {
+            showThrowable(e);
+            return;
+        }
+        JList<String> entries = new JList<String>(names.toArray(new String[names.size()]));
+        entries.setVisibleRowCount(12);
+        JPanel unzipPanel = new JPanel(new BorderLayout(3, 3));
+        unzipPanel.add(new JLabel("Select entries to extract, or none for all"), BorderLayout.NORTH);
+        unzipPanel.add(new JScrollPane(entries), BorderLayout.CENTER);
+        int result = JOptionPane.showConfirmDialog(gui, unzipPanel, "Unzip", JOptionPane.OK_CANCEL_OPTION);
+        if (result != JOptionPane.OK_OPTION) {
+            return;
+        }
+        final List<String> selected = entries.isSelectionEmpty() ? null : entries.getSelectedValuesList();
+
         progressBar.setVisible(true);
-        EventQueue.invokeLater(new Runnable() {
-            @Override
-            public void run() {
-                new UnzipWorker().execute();
-            }
-        });
+        scheduler.submit("Unzip " + currentFile.getName(), OperationScheduler.BULK, new UnzipWorker(selected),
+                currentFile);
 
         gui.repaint();
     }
 
-    private void setTableData(final File[] files) {
-        SwingUtilities.invokeLater(new Runnable() {
-            public void run() {
-                if (fileTableModel == null) {
-                    fileTableModel = new FileTableModel();
-                    table.setModel(fileTableModel);
-                }
-                table.getSelectionModel().removeListSelectionListener(listSelectionListener);
-                fileTableModel.setFiles(files);
-                table.getSelectionModel().addListSelectionListener(listSelectionListener);
-                if (!cellSizesSet) {
-                    Icon icon = fileSystemView.getSystemIcon(files[0]);
+    private void setTableData(final FileAttributeSnapshot files) {
+        setTableData(files, null);
+    }
 
-                    table.setRowHeight(icon.getIconHeight() + rowIconPadding);
+    /** @param groups see {@link FileTableModel#setFiles(FileAttributeSnapshot, int[])} */
+    private void setTableData(FileAttributeSnapshot files, int[] groups) {
+        if (fileTableModel == null) {
+            fileTableModel = new FileTableModel(iconCache);
+            table.setModel(fileTableModel);
+            tableSorter = new FileTableSorter(fileTableModel);
+            tableSorter.setFilter(FileNameFilter.compile(filterField.getText()));
+            table.setRowSorter(tableSorter);
+        }
+        if ((groups == null) != (fileTableModel.getGroups() == null)) {
+            // the table makes its columns anew
+            cellSizesSet = false;
+        }
+        table.getSelectionModel().removeListSelectionListener(listSelectionListener);
+        fileTableModel.setFiles(files, groups);
+        table.getSelectionModel().addListSelectionListener(listSelectionListener);
+        setCellSizes();
+    }
 
-                    setColumnWidth(0, -1);
-                    setColumnWidth(3, 60);
-                    table.getColumnModel().getColumn(3).setMaxWidth(120);
-                    setColumnWidth(4, -1);
-                    setColumnWidth(5, -1);
-                    setColumnWidth(6, -1);
-                    setColumnWidth(7, -1);
-                    setColumnWidth(8, -1);
-                    setColumnWidth(9, -1);
+    private void appendTableData(final FileAttributeSnapshot chunk) {
+        table.getSelectionModel().removeListSelectionListener(listSelectionListener);
+        fileTableModel.appendFiles(chunk);
+        table.getSelectionModel().addListSelectionListener(listSelectionListener);
+        setCellSizes();
+    }
 
-                    cellSizesSet = true;
-                }
+    private void setCellSizes() {
+        if (!cellSizesSet && fileTableModel.getRowCount() > 0) {
+            Icon icon = fileSystemView.getSystemIcon(fileTableModel.getFile(0));
+
+            table.setRowHeight(icon.getIconHeight() + rowIconPadding);
+
+            setColumnWidth(0, -1);
+            setColumnWidth(3, 60);
+            table.getColumnModel().getColumn(3).setMaxWidth(120);
+            setColumnWidth(4, -1);
+            setColumnWidth(5, -1);
+            setColumnWidth(6, -1);
+            setColumnWidth(7, -1);
+            setColumnWidth(8, -1);
+            setColumnWidth(9, -1);
+            if (fileTableModel.getColumnCount() > 10) {
+                setColumnWidth(10, -1);
             }
-        });
+
+            cellSizesSet = true;
+        }
+    }
+
+    private void filterChanged() {
+        if (tableSorter != null) {
+            tableSorter.setFilter(FileNameFilter.compile(filterField.getText()));
+        }
     }
 
     private void setColumnWidth(int column, int width) {
@@ -865,43 +1127,642 @@ public class FileManager {
     }
 
     private void showChildren(final DefaultMutableTreeNode node) {
-        tree.setEnabled(false);
+        cancelResultsWorker();
+        if (listingWorker != null) {
+            listingWorker.cancel(true);
+        }
+        pendingChanges.clear();
+        sizeService.cancelAll();
         progressBar.setVisible(true);
         progressBar.setIndeterminate(true);
 
-        SwingWorker<Void, File> worker = new SwingWorker<Void, File>() {
+        final File file = (File) node.getUserObject();
+        watchTableDirectory(file);
+        final FileTreeNode treeNode = node instanceof FileTreeNode ? (FileTreeNode) node : null;
+        final FileNameFilter filter = tableSorter == null ? null : tableSorter.getFilter();
+        // a filtered listing does not read what the entries it rejects are, the tree lists them itself
+        final boolean populateTree = treeNode != null && treeNode.getState() == FileTreeNode.UNLOADED
+                && filter == null;
+        if (populateTree) {
+            treeNode.setState(FileTreeNode.LOADING);
+        } else if (treeNode != null && treeNode.getState() == FileTreeNode.UNLOADED) {
+            loadTreeChildren(treeNode);
+        }
+        final ListingCache cache = listingCache;
+        listingWorker = new SwingWorker<Void, FileAttributeSnapshot>() {
+            private boolean started = false;
+            private List<DefaultMutableTreeNode> added = new ArrayList<DefaultMutableTreeNode>();
+            // what revalidating a cached listing found, applied when done
+            private FileAttributeSnapshot changed;
+            private Set<File> removed;
+            private List<Path> leftovers = Collections.emptyList();
+
             @Override
-            public Void doInBackground() {
-                File file = (File) node.getUserObject();
-                if (file.isDirectory()) {
-                    File[] files = fileSystemView.getFiles(file, true); // !!
-                    if (node.isLeaf()) {
-                        for (File child : files) {
-                            if (child.isDirectory()) {
-                                publish(child);
-                            }
+            public Void doInBackground() throws IOException {
+                if (!file.isDirectory()) {
+                    return null;
+                }
+                if (fileSystemView.isFileSystem(file)) {
+                    long modified = file.lastModified();
+                    ListingCache.Listing cached = null;
+                    if (cache != null) {
+                        try {
+                            cached = cache.get(file);
+                        } catch (IOException e) {
+                            // list it from disk
+                        }
+                    }
+                    if (cached != null) {
+                        publish(cached.files);
+                        revalidate(cached, modified);
+                    } else {
+                        list(modified);
+                    }
+                    if (!isCancelled() && leftoversChecked.add(file)) {
+                        try {
+                            leftovers = ParallelTreeDeleter.leftovers(file.toPath());
+                        } catch (IOException e) {
+                            // looked for again next session
+                        }
+                    }
+                } else {
+                    // virtual folders are small, list them in one go
+                    FileAttributeSnapshot.Builder builder = new FileAttributeSnapshot.Builder(16, true, filter);
+                    for (File child : fileSystemView.getFiles(file, true)) {
+                        if (isCancelled()) {
+                            return null;
                         }
+                        builder.add(child);
+                    }
+                    publish(builder.build());
+                }
+                return null;
+            }
+
+            private void list(long modified) throws IOException {
+                final SwingWorker<?, ?> listing = this;
+                final boolean cacheable = cache != null && filter == null;
+                final FileAttributeSnapshot[] all = { FileAttributeSnapshot.EMPTY };
+                boolean complete = FileOperations.list(file, true, filter, new IoProgress() {
+                    @Override
+                    public void advance(long entries) {
+                    }
+
+                    @Override
+                    public boolean isCancelled() {
+                        return listing.isCancelled();
+                    }
+                }, new FileOperations.ListingListener() {
+                    @Override
+                    public void chunk(FileAttributeSnapshot chunk) {
+                        publish(chunk);
+                        if (cacheable && all[0] != null) {
+                            all[0] = all[0].size() + chunk.size() > ListingCache.MAX_ENTRIES ? null
+                                    : all[0].append(chunk);
+                        }
+                    }
+                });
+                if (complete && cacheable && all[0] != null) {
+                    storeListing(modified, all[0]);
+                }
+            }
+
+            /**
+             * Brings a painted cached listing up to date. An unchanged
+             * directory only has its entries read again; otherwise it is
+             * listed anew.
+             */
+            private void revalidate(ListingCache.Listing cached, long modified) throws IOException {
+                FileAttributeSnapshot fresh;
+                if (cached.modified == modified && modified != ListingCache.UNKNOWN) {
+                    FileAttributeSnapshot.Builder builder = new FileAttributeSnapshot.Builder(cached.files.size());
+                    for (int i = 0; i < cached.files.size(); i++) {
+                        if (isCancelled()) {
+                            return;
+                        }
+                        builder.add(cached.files.getFile(i));
+                    }
+                    fresh = builder.build();
+                } else {
+                    final SwingWorker<?, ?> listing = this;
+                    final FileAttributeSnapshot[] all = { FileAttributeSnapshot.EMPTY };
+                    boolean complete = FileOperations.list(file, true, null, new IoProgress() {
+                        @Override
+                        public void advance(long entries) {
+                        }
+
+                        @Override
+                        public boolean isCancelled() {
+                            return listing.isCancelled();
+                        }
+                    }, new FileOperations.ListingListener() {
+                        @Override
+                        public void chunk(FileAttributeSnapshot chunk) {
+                            all[0] = all[0].append(chunk);
+                        }
+                    });
+                    if (!complete) {
+                        return;
+                    }
+                    fresh = all[0];
+                }
+                changed = ListingCache.changed(cached.files, fresh);
+                removed = ListingCache.removed(cached.files, fresh);
+                if (changed.size() > 0 || !removed.isEmpty() || cached.modified != modified) {
+                    storeListing(modified, fresh);
+                }
+            }
+
+            private void storeListing(long modified, FileAttributeSnapshot listing) {
+                try {
+                    cache.put(file, modified, listing);
+                } catch (IOException e) {
+                    // only a cache, the next visit lists from disk
+                }
+            }
+
+            @Override
+            protected void process(List<FileAttributeSnapshot> chunks) {
+                if (isCancelled() || listingWorker != this) {
+                    return;
+                }
+                for (FileAttributeSnapshot chunk : chunks) {
+                    if (!started) {
+                        setTableData(chunk);
+                        started = true;
+                    } else {
+                        appendTableData(chunk);
+                    }
+                    requestDirectorySizes(chunk);
+                    if (populateTree) {
+                        for (int i = 0; i < chunk.size(); i++) {
+                            if (chunk.is(i, FileAttributeSnapshot.DIRECTORY)) {
+                                DefaultMutableTreeNode child = newTreeNode(chunk.getFile(i));
+                                treeModel.insertNodeInto(child, node, node.getChildCount());
+                                added.add(child);
+                            }
+                        }
+                    }
+                }
+            }
+
+            @Override
+            protected void done() {
+                if (populateTree) {
+                    if (isCancelled()) {
+                        for (DefaultMutableTreeNode child : added) {
+                            treeModel.removeNodeFromParent(child);
+                        }
+                        treeNode.setState(FileTreeNode.UNLOADED);
+                    } else {
+                        treeLoaded(treeNode);
+                    }
+                }
+                if (listingWorker == this) {
+                    listingWorker = null;
+                    progressBar.setIndeterminate(false);
+                    progressBar.setVisible(false);
+                    if (!isCancelled()) {
+                        try {
+                            get();
+                            if (!started) {
+                                // not a directory (any more), show nothing rather than the previous one
+                                setTableData(FileAttributeSnapshot.EMPTY);
+                            } else if (changed != null && (changed.size() > 0 || !removed.isEmpty())) {
+                                applyDirectoryChanges(file, changed, removed);
+                            }
+                            for (Path leftover : leftovers) {
+                                if (!purging.contains(leftover)) {
+                                    scheduler.submit("Purge " + leftover.getFileName(), OperationScheduler.BACKGROUND,
+                                            new PurgeWorker(leftover));
+                                }
+                            }
+                        } catch (ExecutionException e) {
+                            setTableData(FileAttributeSnapshot.EMPTY);
+                            showThrowable(e.getCause());
+                        } catch (Throwable t) {
+                            setTableData(FileAttributeSnapshot.EMPTY);
+                            showThrowable(t);
+                        }
+                    }
+                    List<Runnable> changes = new ArrayList<Runnable>(pendingChanges);
+                    pendingChanges.clear();
+                    for (Runnable change : changes) {
+                        change.run();
+                    }
+                }
+            }
+        };
+        scheduler.submit("List " + file.getPath(), OperationScheduler.INTERACTIVE, listingWorker);
+    }
+
+    private FileTreeNode newTreeNode(File directory) {
+        return new FileTreeNode(directory, !Boolean.FALSE.equals(hasChildrenHints.get(directory)));
+    }
+
+    /** Refreshes the table with {@code directory}, tree node or not. */
+    private void showDirectory(File directory) {
+        DefaultMutableTreeNode node = treeIndex.getNode(directory);
+        if (node == null) {
+            // not in the tree, list it without touching the tree
+            FileTreeNode detached = new FileTreeNode(directory);
+            detached.setState(FileTreeNode.LOADED);
+            node = detached;
+        }
+        showChildren(node);
+    }
+
+    /**
+     * Shows the effect of an operation in {@code directory}. A watched table
+     * directory is left to the watcher, which updates only the rows that
+     * changed.
+     */
+    private void refreshDirectory(File directory) {
+        if (!tableWatched || !directory.equals(tableDirectory)) {
+            showDirectory(directory);
+        }
+    }
+
+    private void watchTableDirectory(File directory) {
+        if (directory.equals(tableDirectory)) {
+            return;
+        }
+        if (tableWatched) {
+            watcher.unwatch(tableDirectory);
+        }
+        tableDirectory = directory;
+        tableWatched = fileSystemView.isFileSystem(directory) && watcher.watch(directory);
+    }
+
+    private void requestDirectorySizes(FileAttributeSnapshot files) {
+        List<File> directories = new ArrayList<File>();
+        for (int i = 0; i < files.size(); i++) {
+            if (files.is(i, FileAttributeSnapshot.DIRECTORY)) {
+                directories.add(files.getFile(i));
+            }
+        }
+        if (!directories.isEmpty()) {
+            sizeService.request(directories);
+        }
+    }
+
+    private void applyDirectoryChanges(File directory, FileAttributeSnapshot changed, Set<File> removed) {
+        sizeService.invalidate(directory);
+        // also covers shown directories too deep for the index's own watches
+        updateNameIndex(directory, changed, removed);
+        if (directory.equals(tableDirectory) && listingWorker != null) {
+            // replayed once the listing is complete, updates to listed rows are harmless
+            final File changedDirectory = directory;
+            final FileAttributeSnapshot changedFiles = changed;
+            final Set<File> removedFiles = removed;
+            pendingChanges.add(new Runnable() {
+                @Override
+                public void run() {
+                    applyDirectoryChanges(changedDirectory, changedFiles, removedFiles);
+                }
+            });
+        } else if (directory.equals(tableDirectory) && fileTableModel != null) {
+            table.getSelectionModel().removeListSelectionListener(listSelectionListener);
+            fileTableModel.applyChanges(changed, removed);
+            table.getSelectionModel().addListSelectionListener(listSelectionListener);
+            setCellSizes();
+            requestDirectorySizes(changed);
+        }
+        for (int i = 0; i < changed.size(); i++) {
+            if (changed.is(i, FileAttributeSnapshot.DIRECTORY)) {
+                addTreeChild(directory, changed.getFile(i));
+            }
+        }
+        for (File file : removed) {
+            removeTreeNode(file);
+        }
+    }
+
+    private void search() {
+        cancelResultsWorker();
+        if (searchWorker != null) {
+            searchWorker.cancel(true);
+            searchWorker = null;
+        }
+        final FileNameFilter query = FileNameFilter.compile(searchField.getText());
+        final FileNameIndex index = nameIndex;
+        if (query == null) {
+            searchStatus.setText("");
+            DefaultMutableTreeNode selected = (DefaultMutableTreeNode) tree.getLastSelectedPathComponent();
+            if (tableDirectory == null && selected != null) {
+                showChildren(selected);
+            }
+            return;
+        }
+        if (index == null) {
+            searchStatus.setText(indexing ? "Indexing..." : "Nothing indexed");
+            return;
+        }
+        searchWorker = new SwingWorker<FileAttributeSnapshot, Void>() {
+            private List<File> matches;
+            private long millis;
+
+            @Override
+            protected FileAttributeSnapshot doInBackground() {
+                long start = System.nanoTime();
+                matches = index.search(query, SEARCH_LIMIT);
+                millis = (System.nanoTime() - start) / 1000000L;
+                FileAttributeSnapshot.Builder builder = new FileAttributeSnapshot.Builder(matches.size());
+                for (File match : matches) {
+                    if (isCancelled()) {
+                        return null;
+                    }
+                    builder.add(match);
+                }
+                return builder.build();
+            }
+
+            @Override
+            protected void done() {
+                if (isCancelled() || searchWorker != this) {
+                    return;
+                }
+                searchWorker = null;
+                try {
+                    showSearchResults(get());
+                    searchStatus.setText((matches.size() < SEARCH_LIMIT ? "" : "first ") + matches.size()
+                            + " matches in " + millis + " ms");
+                } catch (Exception e) {
+                    searchStatus.setText("Search failed");
+                }
+            }
+        };
+        scheduler.submit("Search " + query.getText(), OperationScheduler.INTERACTIVE, searchWorker);
+    }
+
+    private void searchContents() {
+        cancelResultsWorker();
+        File directory = currentFile != null && currentFile.isDirectory() ? currentFile : tableDirectory;
+        List<String> patterns = new ArrayList<String>();
+        for (String pattern : contentField.getText().split("\\|")) {
+            if (!pattern.isEmpty()) {
+                patterns.add(pattern);
+            }
+        }
+        if (directory == null || patterns.isEmpty()) {
+            return;
+        }
+        resultsWorker = new ContentSearchWorker(directory, new ContentSearcher(patterns, true));
+        showSearchResults(FileAttributeSnapshot.EMPTY);
+        searchStatus.setText("Searching " + directory.getName());
+        scheduler.submit("Find '" + contentField.getText() + "' in " + directory.getName(), OperationScheduler.BULK,
+                resultsWorker, directory);
+    }
+
+    private void findDuplicates() {
+        File directory = currentFile != null && currentFile.isDirectory() ? currentFile : tableDirectory;
+        if (directory == null) {
+            showErrorMessage("Choose a directory to search for duplicates.", "Select Directory");
+            return;
+        }
+        cancelResultsWorker();
+        resultsWorker = new DuplicateWorker(directory);
+        searchStatus.setText("Looking for duplicates in " + directory.getName());
+        scheduler.submit("Find duplicates in " + directory.getName(), OperationScheduler.BULK, resultsWorker,
+                directory);
+    }
+
+    private void cancelResultsWorker() {
+        if (resultsWorker != null) {
+            resultsWorker.cancel(true);
+            resultsWorker = null;
+        }
+    }
+
+    /** Shows files from anywhere in the table, in place of a directory. */
+    private void showSearchResults(FileAttributeSnapshot results) {
+        showSearchResults(results, null);
+    }
+
+    /** @param groups see {@link FileTableModel#setFiles(FileAttributeSnapshot, int[])} */
+    private void showSearchResults(FileAttributeSnapshot results, int[] groups) {
+        if (listingWorker != null) {
+            listingWorker.cancel(true);
+            listingWorker = null;
+        }
+        pendingChanges.clear();
+        sizeService.cancelAll();
+        progressBar.setIndeterminate(false);
+        progressBar.setVisible(false);
+        if (tableWatched) {
+            watcher.unwatch(tableDirectory);
+        }
+        tableWatched = false;
+        tableDirectory = null;
+        // results span the whole index, only the selected directory gets sized
+        setTableData(results, groups);
+    }
+
+    private void chooseIndexRoots() {
+        JFileChooser chooser = new JFileChooser();
+        chooser.setDialogTitle("Directories to index");
+        chooser.setFileSelectionMode(JFileChooser.DIRECTORIES_ONLY);
+        chooser.setMultiSelectionEnabled(true);
+        FileNameIndex index = nameIndex;
+        if (index != null) {
+            chooser.setSelectedFiles(index.getRoots().toArray(new File[0]));
+        } else if (currentFile != null && currentFile.isDirectory()) {
+            chooser.setSelectedFile(currentFile);
+        }
+        if (chooser.showDialog(gui, "Index") == JFileChooser.APPROVE_OPTION) {
+            startIndexing(Arrays.asList(chooser.getSelectedFiles()));
+        }
+    }
+
+    /** @param roots directories to crawl, null to load the saved index */
+    private void startIndexing(List<File> roots) {
+        if (indexing) {
+            return;
+        }
+        indexing = true;
+        String description = roots == null ? "Load name index" : "Index " + roots.size() + " directories";
+        scheduler.submit(description, OperationScheduler.BACKGROUND, new IndexWorker(roots));
+    }
+
+    private void updateNameIndex(final File directory, final FileAttributeSnapshot changed,
+            final Set<File> removed) {
+        final FileNameIndex index = nameIndex;
+        if (index == null) {
+            return;
+        }
+        INDEX_UPDATER.execute(new Runnable() {
+            @Override
+            public void run() {
+                index.update(directory, changed, removed);
+                synchronized (indexWatched) {
+                    for (int i = 0; i < changed.size() && indexWatched.size() < INDEX_MAX_WATCHES; i++) {
+                        File file = changed.getFile(i);
+                        if (changed.is(i, FileAttributeSnapshot.DIRECTORY) && indexWatched.contains(directory)
+                                && !indexWatcher.isWatching(file) && indexWatcher.watch(file)) {
+                            indexWatched.add(file);
+                        }
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Moves the index watches to the shallowest directories of {@code index}.
+     * Deeper ones are only picked up when shown, or by the next rebuild.
+     */
+    private void watchIndexed(FileNameIndex index) {
+        List<File> directories = index.getDirectories(INDEX_MAX_WATCHES);
+        synchronized (indexWatched) {
+            for (File directory : indexWatched) {
+                indexWatcher.unwatch(directory);
+            }
+            indexWatched.clear();
+            for (File directory : directories) {
+                if (indexWatcher.watch(directory)) {
+                    indexWatched.add(directory);
+                }
+            }
+        }
+    }
+
+    /** Adds a directory node, unless the parent is yet to list its children. */
+    private void addTreeChild(File parentDirectory, File directory) {
+        DefaultMutableTreeNode parent = treeIndex.getNode(parentDirectory);
+        if (parent == null || treeIndex.getNode(directory) != null) {
+            return;
+        }
+        if (parent instanceof FileTreeNode) {
+            FileTreeNode parentNode = (FileTreeNode) parent;
+            hasChildrenHints.put(parentNode.getFile(), true);
+            if (parentNode.getState() != FileTreeNode.LOADED) {
+                if (!parentNode.getAllowsChildren()) {
+                    parentNode.setAllowsChildren(true);
+                    treeModel.nodeChanged(parentNode);
+                }
+                return;
+            }
+            parentNode.setAllowsChildren(true);
+        }
+        treeModel.insertNodeInto(new FileTreeNode(directory), parent, parent.getChildCount());
+    }
+
+    private void removeTreeNode(File directory) {
+        DefaultMutableTreeNode node = treeIndex.getNode(directory);
+        if (node != null && node.getParent() != null) {
+            treeModel.removeNodeFromParent(node);
+        }
+    }
+
+    private void treeLoaded(FileTreeNode node) {
+        node.setState(FileTreeNode.LOADED);
+        boolean hasChildren = node.getChildCount() > 0;
+        hasChildrenHints.put(node.getFile(), hasChildren);
+        if (!hasChildren && node.getAllowsChildren()) {
+            node.setAllowsChildren(false);
+            treeModel.nodeStructureChanged(node);
+        }
+    }
+
+    private void loadTreeChildren(final FileTreeNode node) {
+        node.setState(FileTreeNode.LOADING);
+        final File dir = node.getFile();
+        final Object listed = new Object();
+        SwingWorker<Void, Object> loader = new SwingWorker<Void, Object>() {
+            private Map<File, FileTreeNode> children = new HashMap<File, FileTreeNode>();
+
+            @Override
+            protected Void doInBackground() throws IOException {
+                List<File> directories = new ArrayList<File>();
+                try {
+                    if (fileSystemView.isFileSystem(dir)) {
+                        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir.toPath())) {
+                            for (Path child : stream) {
+                                File childFile = child.toFile();
+                                if (Files.isDirectory(child) && !fileSystemView.isHiddenFile(childFile)) {
+                                    directories.add(childFile);
+                                    publish(childFile);
+                                }
+                            }
+                        }
+                    } else {
+                        for (File child : fileSystemView.getFiles(dir, true)) {
+                            if (child.isDirectory()) {
+                                directories.add(child);
+                                publish(child);
+                            }
+                        }
+                    }
+                } finally {
+                    publish(listed);
+                }
+                // tell the tree which children have nothing to expand, closest first
+                for (int i = 0; i < directories.size() && i < HINT_PROBE_LIMIT; i++) {
+                    File child = directories.get(i);
+                    if (isCancelled()) {
+                        break;
+                    }
+                    if (!hasChildrenHints.containsKey(child) && fileSystemView.isFileSystem(child)
+                            && !hasSubdirectory(child)) {
+                        publish(new NoSubdirectories(child));
                     }
-                    setTableData(files);
                 }
                 return null;
             }
 
             @Override
-            protected void process(List<File> chunks) {
-                for (File child : chunks) {
-                    node.add(new DefaultMutableTreeNode(child));
+            protected void process(List<Object> chunks) {
+                for (Object chunk : chunks) {
+                    if (chunk == listed) {
+                        treeLoaded(node);
+                    } else if (chunk instanceof File) {
+                        FileTreeNode child = newTreeNode((File) chunk);
+                        children.put((File) chunk, child);
+                        treeModel.insertNodeInto(child, node, node.getChildCount());
+                    } else if (chunk instanceof NoSubdirectories) {
+                        File empty = ((NoSubdirectories) chunk).directory;
+                        hasChildrenHints.put(empty, false);
+                        FileTreeNode child = children.get(empty);
+                        if (child != null && child.getState() == FileTreeNode.UNLOADED) {
+                            child.setAllowsChildren(false);
+                            treeModel.nodeChanged(child);
+                        }
+                    }
                 }
             }
 
             @Override
             protected void done() {
-                progressBar.setIndeterminate(false);
-                progressBar.setVisible(false);
-                tree.setEnabled(true);
+                try {
+                    get();
+                } catch (Exception e) {
+                    // unreadable directory, it simply shows no children
+                }
             }
         };
-        worker.execute();
+        scheduler.submit("Expand " + dir.getPath(), OperationScheduler.INTERACTIVE, loader);
+    }
+
+    /** Published by the tree loader for a child that has nothing to expand. */
+    private static final class NoSubdirectories {
+        final File directory;
+
+        NoSubdirectories(File directory) {
+            this.directory = directory;
+        }
+    }
+
+    private boolean hasSubdirectory(File dir) {
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir.toPath())) {
+            for (Path child : stream) {
+                if (Files.isDirectory(child) && !fileSystemView.isHiddenFile(child.toFile())) {
+                    return true;
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            return false;
+        }
+        return false;
     }
 
     private void setFileDetails(File file) {
@@ -911,7 +1772,19 @@ public class FileManager {
         fileName.setText(fileSystemView.getSystemDisplayName(file));
         path.setText(file.getPath());
         date.setText(new Date(file.lastModified()).toString());
-        size.setText(file.length() + " bytes");
+        if (file.isDirectory()) {
+            DirectorySizeService.DirectorySize directorySize = sizeService.getCached(file);
+            if (directorySize != null) {
+                size.setText(FileSizeCellRenderer.format(directorySize));
+            } else {
+                size.setText("scanning");
+                sizeService.request(Collections.singleton(file));
+            }
+        } else {
+            size.setText(file.length() + " bytes");
+        }
+        String verification = verifications.get(file);
+        verified.setText(verification == null ? "" : verification);
         readable.setSelected(file.canRead());
         writable.setSelected(file.canWrite());
         executable.setSelected(file.canExecute());
@@ -927,207 +1800,561 @@ public class FileManager {
         gui.repaint();
     }
 
-    class CopyFileVisitor extends SimpleFileVisitor<Path> {
-        private final Path targetPath;
-        private Path sourcePath = null;
+    /**
+     * Runs one operation over a list of files as a single job: one progress
+     * bar over the whole batch, one refresh per touched directory when it is
+     * done, and one report of everything that failed. A failing file does
+     * not stop the batch. What each file's operation did is published to
+     * the EDT as it completes.
+     */
+    abstract class BatchWorker<T> extends SwingWorker<Void, T> {
+        final List<File> files;
+        // directories whose listing the batch changes
+        final Set<File> touched = new LinkedHashSet<File>();
+        // set once submitted, for notes in the operation log
+        OperationScheduler.Operation operation;
+        // the note this batch put into the operation log last
+        private String note;
+        private final String verb;
+        private final String failureTitle;
+
+        BatchWorker(List<File> files, String verb, String failureTitle) {
+            this.files = files;
+            this.verb = verb;
+            this.failureTitle = failureTitle;
+            addPropertyChangeListener(new PropertyChangeListener() {
+                @Override
+                public void propertyChange(PropertyChangeEvent evt) {
+                    progressBar.setValue(getProgress());
+                }
+            });
+        }
+
+        /** Runs the operation on one file, off the EDT, and returns what {@link #completed} needs. */
+        abstract T apply(File file, FileOperations.SizedProgress progress) throws IOException;
 
-        public CopyFileVisitor(Path targetPath) {
-            this.targetPath = targetPath;
+        /**
+         * Updates the tree and table for files that were done, on the EDT.
+         * Results still come in after a cancel, so this can run after
+         * {@link #done}.
+         */
+        void completed(List<T> results) {
         }
 
         @Override
-        public FileVisitResult preVisitDirectory(final Path dir, final BasicFileAttributes attrs) throws IOException {
-            if (sourcePath == null) {
-                sourcePath = dir;
-            } else {
-                Files.createDirectories(targetPath.resolve(sourcePath.relativize(dir)));
+        protected Void doInBackground() throws IOException {
+            List<String> failures = new ArrayList<String>();
+            for (int i = 0; i < files.size() && !isCancelled(); i++) {
+                File file = files.get(i);
+                try {
+                    publish(apply(file, progress(i)));
+                } catch (IOException e) {
+                    failures.add(file.getPath() + ": " + (e.getMessage() == null ? e.toString() : e.getMessage()));
+                }
+                setProgress((int) ((i + 1) * 100L / files.size()));
+            }
+            if (!failures.isEmpty()) {
+                throw new BatchFailure(failures.size() + " of " + files.size() + " could not be " + verb,
+                        failures);
             }
-            return FileVisitResult.CONTINUE;
+            return null;
+        }
+
+        /** Progress of file {@code index}, as its share of the whole batch. */
+        private FileOperations.SizedProgress progress(final int index) {
+            return new FileOperations.SizedProgress() {
+                private long total = -1;
+                private long processed = 0;
+
+                @Override
+                public void total(long bytes) {
+                    total = bytes;
+                }
+
+                @Override
+                public synchronized void advance(long bytes) {
+                    processed += bytes;
+                    if (total > 0) {
+                        long share = Math.min(100, processed * 100 / total);
+                        setProgress((int) ((index * 100L + share) / files.size()));
+                    }
+                }
+
+                @Override
+                public boolean isCancelled() {
+                    return BatchWorker.this.isCancelled();
+                }
+            };
         }
 
         @Override
-        public FileVisitResult visitFile(final Path file, final BasicFileAttributes attrs) throws IOException {
-            Files.copy(file, targetPath.resolve(sourcePath.relativize(file)));
-            return FileVisitResult.CONTINUE;
+        protected void process(List<T> results) {
+            completed(results);
+        }
+
+        @Override
+        protected void done() {
+            progressBar.setVisible(false);
+            for (File directory : touched) {
+                refreshDirectory(directory);
+            }
+            if (isCancelled()) {
+                // what was done before the cancel stays done
+                return;
+            }
+            try {
+                get();
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof BatchFailure) {
+                    showFailures((BatchFailure) e.getCause(), failureTitle);
+                } else {
+                    showThrowable(e.getCause());
+                }
+            } catch (Throwable t) {
+                showThrowable(t);
+            }
         }
     }
 
-    class DeleteWorker extends SwingWorker<Void, Void> {
-        public DeleteWorker() {
-            addPropertyChangeListener(new PropertyChangeListener() {
+    /** The files a batch could not process, one line each. */
+    static final class BatchFailure extends IOException {
+        private final List<String> failures;
+
+        BatchFailure(String message, List<String> failures) {
+            super(message);
+            this.failures = failures;
+        }
+
+        List<String> getFailures() {
+            return failures;
+        }
+    }
+
+    private void showFailures(BatchFailure failure, String title) {
+        StringBuilder text = new StringBuilder();
+        for (String line : failure.getFailures()) {
+            text.append(line).append('\n');
+        }
+        JTextArea lines = new JTextArea(text.toString(), Math.min(12, failure.getFailures().size()), 60);
+        lines.setEditable(false);
+        JPanel panel = new JPanel(new BorderLayout(3, 3));
+        panel.add(new JLabel(failure.getMessage()), BorderLayout.NORTH);
+        panel.add(new JScrollPane(lines), BorderLayout.CENTER);
+        JOptionPane.showMessageDialog(gui, panel, title, JOptionPane.ERROR_MESSAGE);
+    }
+
+    /** The selected table rows, or the file shown in the details if no row is selected. */
+    private List<File> selectedFiles() {
+        List<File> files = new ArrayList<File>();
+        if (fileTableModel != null) {
+            for (int row : table.getSelectedRows()) {
+                files.add(fileTableModel.getFile(table.convertRowIndexToModel(row)));
+            }
+        }
+        if (files.isEmpty() && currentFile != null) {
+            files.add(currentFile);
+        }
+        return files;
+    }
+
+    /** The distinct directories holding {@code files}, usually just one. */
+    private static File[] parentsOf(List<File> files) {
+        Set<File> parents = new LinkedHashSet<File>();
+        for (File file : files) {
+            parents.add(file.getAbsoluteFile().getParentFile());
+        }
+        return parents.toArray(new File[parents.size()]);
+    }
+
+    private static String describe(String verb, List<File> files) {
+        return files.size() == 1 ? verb + " " + files.get(0).getName() : verb + " " + files.size() + " items";
+    }
+
+    class DeleteWorker extends BatchWorker<File> {
+        DeleteWorker(List<File> files) {
+            super(files, "deleted", "Delete Failed");
+            touched.addAll(Arrays.asList(parentsOf(files)));
+        }
+
+        @Override
+        File apply(File file, FileOperations.SizedProgress progress) throws IOException {
+            FileOperations.delete(file, progress);
+            return file;
+        }
+
+        @Override
+        void completed(List<File> deleted) {
+            // tree and index belong to the EDT, so they are updated here
+            filesDeleted(deleted);
+        }
+    }
+
+    /** Stages {@code target} for a {@link PurgeWorker}, see {@link ParallelTreeDeleter#stage}. */
+    private Path stage(Path target) throws IOException {
+        Path staged = ParallelTreeDeleter.stage(target);
+        purging.add(staged);
+        return staged;
+    }
+
+    /**
+     * Deletes a tree staged by a fast delete or a move, or one such a purge
+     * left behind in an earlier session. Runs as background work, a failure
+     * only shows up in the operation list.
+     */
+    class PurgeWorker extends SwingWorker<Void, Void> {
+        private final Path staged;
+
+        PurgeWorker(Path staged) {
+            this.staged = staged;
+            purging.add(staged);
+        }
+
+        @Override
+        protected Void doInBackground() throws IOException {
+            new ParallelTreeDeleter(2, Thread.MIN_PRIORITY).delete(staged, new IoProgress() {
                 @Override
-                public void propertyChange(PropertyChangeEvent evt) {
-                    progressBar.setValue(getProgress());
+                public void advance(long entries) {
+                }
+
+                @Override
+                public boolean isCancelled() {
+                    // a cancelled purge leaves the rest of the hidden staging directory behind
+                    return PurgeWorker.this.isCancelled();
                 }
             });
+            return null;
         }
 
         @Override
-
         protected void done() {
-            progressBar.setVisible(false);
+            purging.remove(staged);
+        }
+    }
+
+    /**
+     * Loads or builds the file name index and swaps it in. A saved index
+     * older than {@link #INDEX_MAX_AGE_MILLIS} is used until it is rebuilt.
+     */
+    class IndexWorker extends SwingWorker<FileNameIndex, Void> {
+        private List<File> roots;
+        private IOException saveFailure;
+
+        IndexWorker(List<File> roots) {
+            this.roots = roots;
+        }
+
+        @Override
+        protected FileNameIndex doInBackground() throws IOException {
+            if (roots == null) {
+                FileNameIndex saved = FileNameIndex.load(INDEX_FILE);
+                nameIndex = saved;
+                watchIndexed(saved);
+                if (System.currentTimeMillis() - saved.getBuiltAt() < INDEX_MAX_AGE_MILLIS) {
+                    return saved;
+                }
+                roots = saved.getRoots();
+            }
+            FileNameIndex index = FileNameIndex.build(roots, new IoProgress() {
+                @Override
+                public void advance(long entries) {
+                }
+
+                @Override
+                public boolean isCancelled() {
+                    return IndexWorker.this.isCancelled();
+                }
+            });
+            try {
+                index.save(INDEX_FILE);
+            } catch (IOException e) {
+                // still usable until the application exits
+                saveFailure = e;
+            }
+            nameIndex = index;
+            watchIndexed(index);
+            return index;
         }
 
         @Override
-        protected Void doInBackground() throws Exception {
+        protected void done() {
+            indexing = false;
+            if (isCancelled()) {
+                return;
+            }
             try {
-                TreePath currentPath = null;
-                DefaultMutableTreeNode currentNode = null;
-                boolean directory = currentFile.isDirectory();
-                if (directory) {
-                    currentPath = findTreePath(currentFile);
-                    currentNode = (DefaultMutableTreeNode) currentPath.getLastPathComponent();
+                FileNameIndex index = get();
+                searchStatus.setText(saveFailure == null ? index.size() + " names indexed"
+                        : "Index not saved: " + saveFailure.getMessage());
+                if (searchField.getText().trim().length() > 0) {
+                    search();
                 }
-                TreePath parentPath = findTreePath(currentFile.getParentFile());
-                DefaultMutableTreeNode parentNode = (DefaultMutableTreeNode) parentPath.getLastPathComponent();
+            } catch (Exception e) {
+                // the scheduler logs the failure
+                searchStatus.setText("Indexing failed");
+            }
+        }
+    }
 
-                boolean deleted = false;
-                if (directory) {
-                    try {
-                        Files.walkFileTree(currentFile.toPath(), new SimpleFileVisitor<Path>() {
-                            @Override
-                            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
-                                Files.delete(file);
-                                return FileVisitResult.CONTINUE;
-                            }
+    /** Streams the files containing a pattern into the table as they are found. */
+    class ContentSearchWorker extends SwingWorker<Integer, FileAttributeSnapshot> {
+        private final File directory;
+        private final ContentSearcher searcher;
+        private final AtomicLong scanned = new AtomicLong();
+        private final AtomicInteger found = new AtomicInteger();
 
-                            @Override
-                            public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
-                                if (exc == null) {
-                                    Files.delete(dir);
-                                    return FileVisitResult.CONTINUE;
-                                } else {
-                                    throw exc;
-                                }
-                            }
-                        });
+        ContentSearchWorker(File directory, ContentSearcher searcher) {
+            this.directory = directory;
+            this.searcher = searcher;
+        }
 
-                        deleted = true;
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                        deleted = false;
-                    }
-                } else {
-                    deleted = currentFile.delete();
+        @Override
+        protected Integer doInBackground() {
+            searcher.search(directory.toPath(), new IoProgress() {
+                @Override
+                public void advance(long bytes) {
+                    scanned.addAndGet(bytes);
                 }
-                if (deleted) {
-                    if (directory) {
-                        treeModel.removeNodeFromParent(currentNode);
-                    }
-                    showChildren(parentNode);
-                    int index = table.getSelectionModel().getLeadSelectionIndex();
-                    if (index > 0) {
-                        table.getSelectionModel().setLeadSelectionIndex(index - 1);
-                    } else {
-                        table.getSelectionModel().clearSelection();
-                        currentFile = null;
-                    }
-                } else {
-                    String msg = "The file '" + currentFile + "' could not be deleted.";
-                    showErrorMessage(msg, "Delete Failed");
+
+                @Override
+                public boolean isCancelled() {
+                    return ContentSearchWorker.this.isCancelled();
                 }
-            } catch (Throwable t) {
-                showThrowable(t);
+            }, new ContentSearcher.Listener() {
+                @Override
+                public void found(Path file) {
+                    found.incrementAndGet();
+                    publish(FileAttributeSnapshot.read(new File[] { file.toFile() }));
+                }
+            });
+            return found.get();
+        }
+
+        @Override
+        protected void process(List<FileAttributeSnapshot> chunks) {
+            if (resultsWorker != this) {
+                return;
+            }
+            FileAttributeSnapshot matches = FileAttributeSnapshot.EMPTY;
+            for (FileAttributeSnapshot chunk : chunks) {
+                matches = matches.append(chunk);
+            }
+            appendTableData(matches);
+        }
+
+        @Override
+        protected void done() {
+            if (isCancelled() || resultsWorker != this) {
+                return;
+            }
+            resultsWorker = null;
+            try {
+                searchStatus.setText(get() + " files contain it, " + (scanned.get() >> 20) + " MB read");
+            } catch (Exception e) {
+                // the scheduler logs the failure
+                searchStatus.setText("Search failed");
             }
-            return null;
         }
     }
 
-    class PasteWorker extends SwingWorker<Void, Void> {
-        public PasteWorker() {
-            addPropertyChangeListener(new PropertyChangeListener() {
+    /**
+     * Shows the groups of identical files below a directory, one group after
+     * the other, the group wasting the most space first.
+     */
+    class DuplicateWorker extends SwingWorker<FileAttributeSnapshot, Void> {
+        private final File directory;
+        private int groups;
+        // the group of each result row
+        private int[] groupOf;
+        private long wasted;
+
+        DuplicateWorker(File directory) {
+            this.directory = directory;
+        }
+
+        @Override
+        protected FileAttributeSnapshot doInBackground() throws IOException {
+            List<List<Path>> duplicates = new DuplicateFinder().find(directory.toPath(), new IoProgress() {
                 @Override
-                public void propertyChange(PropertyChangeEvent evt) {
-                    progressBar.setValue(getProgress());
+                public void advance(long bytes) {
+                }
+
+                @Override
+                public boolean isCancelled() {
+                    return DuplicateWorker.this.isCancelled();
                 }
             });
+            FileAttributeSnapshot.Builder builder = new FileAttributeSnapshot.Builder(duplicates.size() * 2);
+            groupOf = new int[16];
+            for (List<Path> group : duplicates) {
+                groups++;
+                for (Path file : group) {
+                    if (builder.size() == groupOf.length) {
+                        groupOf = Arrays.copyOf(groupOf, groupOf.length * 2);
+                    }
+                    groupOf[builder.size()] = groups;
+                    builder.add(file.toFile());
+                }
+                wasted += group.get(0).toFile().length() * (group.size() - 1);
+            }
+            return builder.build();
         }
 
         @Override
-
         protected void done() {
-            progressBar.setVisible(false);
+            if (isCancelled() || resultsWorker != this) {
+                return;
+            }
+            resultsWorker = null;
+            try {
+                FileAttributeSnapshot files = get();
+                showSearchResults(files, Arrays.copyOf(groupOf, files.size()));
+                // kept together by group, whatever the table was sorted by
+                tableSorter.setSortKeys(Collections.singletonList(new RowSorter.SortKey(10, SortOrder.ASCENDING)));
+                searchStatus.setText(files.size() + " files in " + groups + " groups, " + (wasted >> 20)
+                        + " MB duplicated");
+            } catch (Exception e) {
+                // the scheduler logs the failure
+                searchStatus.setText("Duplicate search failed");
+            }
+        }
+    }
+
+    /** What copying or moving one file did, handed from a batch to the EDT. */
+    private static final class Transfer {
+        final File source;
+        // the copied or moved file, with its attributes
+        final FileAttributeSnapshot target;
+        final String verification;
+        // the source, staged for a purge after a copy across devices
+        final Path staged;
+
+        Transfer(File source, File target, String verification, Path staged) {
+            this.source = source;
+            FileAttributeSnapshot.Builder builder = new FileAttributeSnapshot.Builder(1);
+            builder.add(target);
+            this.target = builder.build();
+            this.verification = verification;
+            this.staged = staged;
+        }
+    }
+
+    class PasteWorker extends BatchWorker<Transfer> {
+        private final File parentFile;
+        private final String verify;
+        private final List<String> verified = new ArrayList<String>();
+
+        PasteWorker(List<File> sources, File parentFile, String verify) {
+            super(sources, "copied", "Copy Failed");
+            this.parentFile = parentFile;
+            this.verify = verify;
+            touched.add(parentFile);
         }
 
         @Override
-        protected Void doInBackground() throws Exception {
-            try {
-                File parentFile = currentFile;
-                if (!parentFile.isDirectory()) {
-                    parentFile = parentFile.getParentFile();
+        Transfer apply(File source, FileOperations.SizedProgress progress) throws IOException {
+            File target = FileOperations.copyTarget(source, parentFile);
+            String verification = FileOperations.copy(source, target, verify, progress);
+            if (verification != null) {
+                verifications.put(target, verification);
+            }
+            return new Transfer(source, target, verification, null);
+        }
+
+        @Override
+        void completed(List<Transfer> copies) {
+            for (Transfer copy : copies) {
+                if (copy.target.is(0, FileAttributeSnapshot.DIRECTORY)) {
+                    addTreeChild(parentFile, copy.target.getFile(0));
                 }
-                String name = copyFileCtn.getName();
-                String newName = copyFileCtn.getName();
-                File file = null;
-                do {
-                    if (name.contains(".")) {
-                        newName = name.substring(0, name.lastIndexOf("."));
-                        newName += "_Copy";
-                        newName += name.substring(name.lastIndexOf("."), name.length());
-                    } else
-                        newName += "_Copy";
-                    name = newName;
-                    file = new File(parentFile, newName);
-                } while (file.exists());
-                boolean created = false;
-                boolean copied = false;
-                if (copyFileCtn.isDirectory()) {
-                    try {
-                        created = file.mkdir();
-                        if (created)
-                            Files.walkFileTree(copyFileCtn.toPath(), new CopyFileVisitor(file.toPath()));
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                        copied = false;
-                    }
-                } else {
-                    created = file.createNewFile();
-                    file.setReadable(copyFileCtn.canRead());
-                    file.setWritable(copyFileCtn.canWrite());
-                    file.setExecutable(copyFileCtn.canExecute());
-                    if (created) {
-                        try {
-                            FileInputStream fis = new FileInputStream(copyFileCtn);
-                            FileOutputStream fos = new FileOutputStream(file);
-
-                            byte[] buffer = new byte[1024];
-                            int length;
-                            long writing = 0;
-
-                            while ((length = fis.read(buffer)) > 0) {
-                                writing += 1024;
-                                int progress = (int) Math
-                                        .round(((double) writing / (double) currentFile.length()) * 100);
-                                if (progress < 0)
-                                    progress = 0;
-                                setProgress(progress);
-                                fos.write(buffer, 0, length);
-                            }
-                            fis.close();
-                            fos.close();
-                            copied = true;
-                        } catch (IOException error) {
-                            copied = false;
-                        }
-                    }
+                if (copy.verification != null) {
+                    verified.add(copy.verification);
                 }
-                if (created && copied) {
-                    TreePath parentPath = findTreePath(parentFile);
-                    DefaultMutableTreeNode parentNode = (DefaultMutableTreeNode) parentPath.getLastPathComponent();
+            }
+            noteVerified(this, verified);
+        }
+    }
 
-                    if (file.isDirectory()) {
-                        DefaultMutableTreeNode newNode = new DefaultMutableTreeNode(file);
-                        treeModel.insertNodeInto(newNode, parentNode, parentNode.getChildCount());
-                    }
-                    showChildren(parentNode);
-                } else {
-                    String msg = "The file '" + copyFileCtn + "' could not be copied.";
-                    showErrorMessage(msg, "Copy Failed");
+    /**
+     * Puts what a batch verified so far into the operation log. A failure
+     * recorded there wins over the note.
+     */
+    private void noteVerified(BatchWorker<?> worker, List<String> verified) {
+        if (verified.isEmpty() || worker.operation == null) {
+            return;
+        }
+        String message = worker.operation.getMessage();
+        if (message != null && !message.equals(worker.note)) {
+            return;
+        }
+        worker.note = verified.size() == 1 ? "verified " + verified.get(0) : verified.size() + " items verified";
+        worker.operation.setMessage(worker.note);
+        if (currentFile != null) {
+            setFileDetails(currentFile);
+        }
+    }
+
+    /**
+     * Moves files into a directory. On the same file store that is one
+     * rename per file, whatever its size; across devices the file is copied
+     * and the source staged and purged in the background. Tree, table and
+     * name index are updated from what was moved, neither directory is
+     * listed again.
+     */
+    class MoveWorker extends BatchWorker<Transfer> {
+        private final File parentFile;
+        private final String verify;
+        private final List<String> verified = new ArrayList<String>();
+
+        MoveWorker(List<File> sources, File parentFile, String verify) {
+            super(sources, "moved", "Move Failed");
+            this.parentFile = parentFile;
+            this.verify = verify;
+        }
+
+        @Override
+        Transfer apply(File source, FileOperations.SizedProgress progress) throws IOException {
+            File target = new File(parentFile, source.getName());
+            if (FileOperations.rename(source, target)) {
+                return new Transfer(source, target, null, null);
+            }
+            // a copy that fails verification is removed, the source stays
+            String verification = FileOperations.copy(source, target, verify, progress);
+            if (verification != null) {
+                verifications.put(target, verification);
+            }
+            Path staged = null;
+            try {
+                staged = stage(source.toPath());
+            } catch (IOException e) {
+                FileOperations.delete(source, IoProgress.NONE);
+            }
+            return new Transfer(source, target, verification, staged);
+        }
+
+        @Override
+        void completed(List<Transfer> moves) {
+            Map<File, Set<File>> removed = new HashMap<File, Set<File>>();
+            FileAttributeSnapshot moved = FileAttributeSnapshot.EMPTY;
+            for (Transfer move : moves) {
+                if (move.staged != null) {
+                    scheduler.submit("Purge " + move.staged.getFileName(), OperationScheduler.BACKGROUND,
+                            new PurgeWorker(move.staged));
+                }
+                File parent = move.source.getAbsoluteFile().getParentFile();
+                if (!removed.containsKey(parent)) {
+                    removed.put(parent, new HashSet<File>());
+                }
+                removed.get(parent).add(move.source);
+                moved = moved.append(move.target);
+                if (move.verification != null) {
+                    verified.add(move.verification);
                 }
-            } catch (Throwable t) {
-                showThrowable(t);
             }
-            return null;
+            for (Map.Entry<File, Set<File>> entry : removed.entrySet()) {
+                applyDirectoryChanges(entry.getKey(), FileAttributeSnapshot.EMPTY, entry.getValue());
+            }
+            applyDirectoryChanges(parentFile, moved, Collections.<File>emptySet());
+            noteVerified(this, verified);
         }
     }
 
@@ -1137,22 +2364,37 @@ public class FileManager {
             return;
         }
 
-        if (copyFileCtn == null) {
+        if (copiedFiles == null) {
             showErrorMessage("No file to copy.", "Select File");
             return;
         }
 
+        File parentFile = currentFile.isDirectory() ? currentFile : currentFile.getParentFile();
+        List<File> paths = new ArrayList<File>(Arrays.asList(parentsOf(copiedFiles)));
+        paths.add(parentFile);
         progressBar.setVisible(true);
-        EventQueue.invokeLater(new Runnable() {
-            @Override
-            public void run() {
-                new PasteWorker().execute();
-            }
-        });
+        progressBar.setValue(0);
+        String verify = verifyCopies.isSelected() ? ContentHash.DEFAULT_ALGORITHM : null;
+        BatchWorker<Transfer> worker;
+        if (filesCut) {
+            worker = new MoveWorker(copiedFiles, parentFile, verify);
+            worker.operation = scheduler.submit(describe("Move", copiedFiles) + " to " + parentFile.getName(),
+                    OperationScheduler.BULK, worker, paths.toArray(new File[paths.size()]));
+            // the sources are gone once moved, they can not be pasted again
+            copiedFiles = null;
+            filesCut = false;
+        } else {
+            worker = new PasteWorker(copiedFiles, parentFile, verify);
+            worker.operation = scheduler.submit(describe("Copy", copiedFiles) + " to " + parentFile.getName(),
+                    OperationScheduler.BULK, worker, paths.toArray(new File[paths.size()]));
+        }
         gui.repaint();
     }
 
     public static void main(String[] args) {
+        if (args.length > 0) {
+            System.exit(new CommandLine(System.out, System.err).run(args));
+        }
         SwingUtilities.invokeLater(new Runnable() {
             public void run() {
                 try {
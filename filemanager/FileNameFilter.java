@@ -0,0 +1,148 @@
+package filemanager;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Case insensitive file name filter. Text containing {@code *}, {@code ?} or
+ * {@code [} is treated as a glob matched against the whole name, anything
+ * else as a substring.
+ */
+final class FileNameFilter {
+    private final String text;
+    private final String needle;
+    private final Pattern glob;
+
+    private FileNameFilter(String text, boolean literal) {
+        this.text = text;
+        if (!literal && isGlob(text)) {
+            this.needle = null;
+            this.glob = Pattern.compile(globToRegex(text), Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE);
+        } else {
+            this.needle = text.toLowerCase(Locale.ROOT);
+            this.glob = null;
+        }
+    }
+
+    /**
+     * Returns the filter for {@code text}, or null if the text is blank and
+     * nothing should be filtered out.
+     */
+    static FileNameFilter compile(String text) {
+        if (text == null || text.trim().isEmpty()) {
+            return null;
+        }
+        try {
+            return new FileNameFilter(text.trim(), false);
+        } catch (PatternSyntaxException e) {
+            return new FileNameFilter(text.trim(), true);
+        }
+    }
+
+    String getText() {
+        return text;
+    }
+
+    boolean accept(String name) {
+        if (glob != null) {
+            return glob.matcher(name).matches();
+        }
+        return name.toLowerCase(Locale.ROOT).contains(needle);
+    }
+
+    /**
+     * True if every name accepted by this filter is also accepted by
+     * {@code wider}, so narrowing can start from what {@code wider} kept.
+     */
+    boolean narrows(FileNameFilter wider) {
+        if (wider == null) {
+            return true;
+        }
+        return needle != null && wider.needle != null && needle.contains(wider.needle);
+    }
+
+    /**
+     * Lower case pieces of text that every accepted name contains, for
+     * looking up candidates in an index. Empty if the filter has no literal
+     * text, e.g. {@code *.?}.
+     */
+    List<String> requiredFragments() {
+        List<String> fragments = new ArrayList<String>();
+        if (glob == null) {
+            fragments.add(needle);
+            return fragments;
+        }
+        StringBuilder run = new StringBuilder();
+        boolean inClass = false;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (inClass) {
+                inClass = c != ']';
+                continue;
+            }
+            if (c == '*' || c == '?' || (c == '[' && text.indexOf(']', i + 1) > i + 1)) {
+                inClass = c == '[';
+                if (run.length() > 0) {
+                    fragments.add(run.toString().toLowerCase(Locale.ROOT));
+                    run.setLength(0);
+                }
+            } else {
+                run.append(c);
+            }
+        }
+        if (run.length() > 0) {
+            fragments.add(run.toString().toLowerCase(Locale.ROOT));
+        }
+        return fragments;
+    }
+
+    static boolean isGlob(String text) {
+        return text.indexOf('*') >= 0 || text.indexOf('?') >= 0 || text.indexOf('[') >= 0;
+    }
+
+    static String globToRegex(String glob) {
+        StringBuilder regex = new StringBuilder();
+        boolean inClass = false;
+        for (int i = 0; i < glob.length(); i++) {
+            char c = glob.charAt(i);
+            if (inClass) {
+                if (c == ']') {
+                    inClass = false;
+                    regex.append(']');
+                } else if (c == '\\') {
+                    regex.append("\\\\");
+                } else if (c == '!' && glob.charAt(i - 1) == '[') {
+                    regex.append('^');
+                } else {
+                    regex.append(c);
+                }
+                continue;
+            }
+            switch (c) {
+            case '*':
+                regex.append(".*");
+                break;
+            case '?':
+                regex.append('.');
+                break;
+            case '[':
+                if (glob.indexOf(']', i + 1) > i + 1) {
+                    inClass = true;
+                    regex.append('[');
+                } else {
+                    regex.append("\\[");
+                }
+                break;
+            default:
+                if ("\\.^$|+(){}".indexOf(c) >= 0) {
+                    regex.append('\\');
+                }
+                regex.append(c);
+            }
+        }
+        return regex.toString();
+    }
+}
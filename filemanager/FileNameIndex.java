@@ -0,0 +1,554 @@
+package filemanager;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Trigram index over the file names below a set of roots. Every entry keeps
+ * only its name and the id of its parent directory, so paths share their
+ * prefixes. For each trigram of a lower cased name the index holds the ids
+ * of the entries containing it, as ascending, delta encoded varints. A query
+ * intersects the lists of the trigrams its literal text must contain and
+ * checks just the surviving candidates against the full
+ * {@link FileNameFilter}.
+ * <p>
+ * Entries are only ever appended; removed ones are marked deleted, which
+ * also hides everything below a deleted directory. Searches and updates may
+ * come from different threads.
+ */
+final class FileNameIndex {
+    private static final int MAGIC = 0x464d4e49;
+    private static final int VERSION = 1;
+    private static final int NO_PARENT = -1;
+    private static final byte DIRECTORY = 1;
+    private static final int NONE = -1;
+    private static final int SMALL_BATCH = 8;
+
+    private static final class PostingList {
+        private byte[] data = new byte[4];
+        private int length;
+        private int size;
+        private int last = -1;
+
+        void add(int id) {
+            if (id == last) {
+                // the same trigram twice in one name
+                return;
+            }
+            if (length + 5 > data.length) {
+                data = Arrays.copyOf(data, data.length * 2);
+            }
+            int delta = id - last;
+            while ((delta & ~0x7f) != 0) {
+                data[length++] = (byte) ((delta & 0x7f) | 0x80);
+                delta >>>= 7;
+            }
+            data[length++] = (byte) delta;
+            last = id;
+            size++;
+        }
+
+        int[] decode() {
+            int[] ids = new int[size];
+            int id = -1;
+            int position = 0;
+            for (int i = 0; i < size; i++) {
+                int delta = 0;
+                int shift = 0;
+                byte b;
+                do {
+                    b = data[position++];
+                    delta |= (b & 0x7f) << shift;
+                    shift += 7;
+                } while (b < 0);
+                id += delta;
+                ids[i] = id;
+            }
+            return ids;
+        }
+    }
+
+    private final List<File> roots;
+    private long builtAt;
+    private int count;
+    private int[] parents = new int[1024];
+    // children of an entry as a chain, so a directory's entries are found without a search
+    private int[] firstChildren = newChain(1024);
+    private int[] nextSiblings = newChain(1024);
+    private byte[] flags = new byte[1024];
+    private int[] nameOffsets = new int[1025];
+    private byte[] names = new byte[16384];
+    private final BitSet deleted = new BitSet();
+    private final Map<Long, PostingList> postings = new HashMap<Long, PostingList>();
+    // directories that had change events, to their id
+    private final Map<File, Integer> directoryIds = new HashMap<File, Integer>();
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private FileNameIndex(List<File> roots) {
+        this.roots = Collections.unmodifiableList(new ArrayList<File>(roots));
+    }
+
+    /**
+     * Crawls {@code roots} breadth first, so directories get ids in order of
+     * depth. Links are indexed but not followed, unreadable directories are
+     * skipped. Reports one unit of progress per entry.
+     */
+    static FileNameIndex build(List<File> roots, IoProgress progress) {
+        FileNameIndex index = new FileNameIndex(roots);
+        ArrayDeque<Path> pendingPaths = new ArrayDeque<Path>();
+        ArrayDeque<Integer> pendingIds = new ArrayDeque<Integer>();
+        for (File root : roots) {
+            File absolute = root.getAbsoluteFile();
+            int id = index.add(NO_PARENT, absolute.getPath(), true);
+            pendingPaths.add(absolute.toPath());
+            pendingIds.add(id);
+        }
+        while (!pendingPaths.isEmpty()) {
+            Path directory = pendingPaths.poll();
+            int directoryId = pendingIds.poll();
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+                for (Path child : stream) {
+                    if (progress.isCancelled()) {
+                        throw new CancellationException();
+                    }
+                    String name = child.getFileName().toString();
+                    if (name.startsWith(ParallelTreeDeleter.STAGING_PREFIX)) {
+                        continue;
+                    }
+                    boolean isDirectory = Files.isDirectory(child, LinkOption.NOFOLLOW_LINKS);
+                    int id = index.add(directoryId, name, isDirectory);
+                    if (isDirectory) {
+                        pendingPaths.add(child);
+                        pendingIds.add(id);
+                    }
+                    progress.advance(1);
+                }
+            } catch (IOException e) {
+                // unreadable or vanished, index what is there
+            }
+        }
+        index.builtAt = System.currentTimeMillis();
+        return index;
+    }
+
+    List<File> getRoots() {
+        return roots;
+    }
+
+    long getBuiltAt() {
+        return builtAt;
+    }
+
+    int size() {
+        lock.readLock().lock();
+        try {
+            return count - deleted.cardinality();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Returns up to {@code limit} live entries whose name {@code filter}
+     * accepts, in crawl order.
+     */
+    List<File> search(FileNameFilter filter, int limit) {
+        lock.readLock().lock();
+        try {
+            List<File> results = new ArrayList<File>();
+            int[] candidates = candidates(filter.requiredFragments());
+            int total = candidates == null ? count : candidates.length;
+            for (int i = 0; i < total && results.size() < limit; i++) {
+                int id = candidates == null ? i : candidates[i];
+                if (parents[id] != NO_PARENT && filter.accept(name(id)) && isLive(id)) {
+                    results.add(fileOf(id));
+                }
+            }
+            return results;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * The first {@code max} indexed directories, shallowest first, for
+     * watching.
+     */
+    List<File> getDirectories(int max) {
+        lock.readLock().lock();
+        try {
+            List<File> directories = new ArrayList<File>();
+            for (int id = 0; id < count && directories.size() < max; id++) {
+                if ((flags[id] & DIRECTORY) != 0 && isLive(id)) {
+                    directories.add(fileOf(id));
+                }
+            }
+            return directories;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Applies a change batch from a {@link DirectoryWatcher}. Directories
+     * outside the index are ignored. Takes the write lock, so it waits for
+     * running searches; call it off the EDT.
+     */
+    void update(File directory, FileAttributeSnapshot changed, Set<File> removed) {
+        lock.writeLock().lock();
+        try {
+            int parent = directoryId(directory.getAbsoluteFile());
+            if (parent < 0) {
+                return;
+            }
+            // a big batch looks its names up in a map of the directory, a small one walks it
+            Map<String, Integer> children = changed.size() + removed.size() > SMALL_BATCH ? children(parent) : null;
+            for (File file : removed) {
+                int id = children == null ? find(parent, file.getName()) : lookup(children, file.getName());
+                if (id >= 0) {
+                    deleted.set(id);
+                    directoryIds.remove(file.getAbsoluteFile());
+                    if (children != null) {
+                        children.remove(file.getName());
+                    }
+                }
+            }
+            for (int i = 0; i < changed.size(); i++) {
+                String name = changed.getFile(i).getName();
+                if ((children == null ? find(parent, name) : lookup(children, name)) < 0) {
+                    int id = add(parent, name, changed.is(i, FileAttributeSnapshot.DIRECTORY));
+                    if (children != null) {
+                        children.put(name, id);
+                    }
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Writes the index to {@code file}, replacing it in one step. Deleted
+     * entries are written too; a fresh crawl drops them.
+     */
+    void save(Path file) throws IOException {
+        lock.readLock().lock();
+        try {
+            Files.createDirectories(file.toAbsolutePath().getParent());
+            Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+            try (OutputStream stream = Files.newOutputStream(temp);
+                    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream, 1 << 20))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeLong(builtAt);
+                out.writeInt(roots.size());
+                for (File root : roots) {
+                    out.writeUTF(root.getPath());
+                }
+                out.writeInt(count);
+                for (int id = 0; id < count; id++) {
+                    out.writeInt(parents[id]);
+                    out.writeByte(flags[id]);
+                    out.writeInt(nameOffsets[id + 1]);
+                }
+                out.writeInt(nameOffsets[count]);
+                out.write(names, 0, nameOffsets[count]);
+                long[] words = deleted.toLongArray();
+                out.writeInt(words.length);
+                for (long word : words) {
+                    out.writeLong(word);
+                }
+                out.writeInt(postings.size());
+                for (Map.Entry<Long, PostingList> entry : postings.entrySet()) {
+                    PostingList list = entry.getValue();
+                    out.writeLong(entry.getKey());
+                    out.writeInt(list.size);
+                    out.writeInt(list.last);
+                    out.writeInt(list.length);
+                    out.write(list.data, 0, list.length);
+                }
+            }
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    static FileNameIndex load(Path file) throws IOException {
+        try (InputStream stream = Files.newInputStream(file);
+                DataInputStream in = new DataInputStream(new BufferedInputStream(stream, 1 << 20))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("Not a file name index: " + file);
+            }
+            long builtAt = in.readLong();
+            List<File> roots = new ArrayList<File>();
+            for (int i = in.readInt(); i > 0; i--) {
+                roots.add(new File(in.readUTF()));
+            }
+            FileNameIndex index = new FileNameIndex(roots);
+            index.builtAt = builtAt;
+            int count = in.readInt();
+            index.count = count;
+            index.parents = new int[Math.max(count, 1)];
+            index.flags = new byte[Math.max(count, 1)];
+            index.nameOffsets = new int[Math.max(count, 1) + 1];
+            for (int id = 0; id < count; id++) {
+                index.parents[id] = in.readInt();
+                index.flags[id] = in.readByte();
+                index.nameOffsets[id + 1] = in.readInt();
+            }
+            index.firstChildren = newChain(Math.max(count, 1));
+            index.nextSiblings = newChain(Math.max(count, 1));
+            for (int id = 0; id < count; id++) {
+                index.link(id);
+            }
+            index.names = new byte[Math.max(in.readInt(), 1)];
+            in.readFully(index.names, 0, index.nameOffsets[count]);
+            long[] words = new long[in.readInt()];
+            for (int i = 0; i < words.length; i++) {
+                words[i] = in.readLong();
+            }
+            index.deleted.or(BitSet.valueOf(words));
+            for (int i = in.readInt(); i > 0; i--) {
+                PostingList list = new PostingList();
+                long key = in.readLong();
+                list.size = in.readInt();
+                list.last = in.readInt();
+                list.length = in.readInt();
+                list.data = new byte[Math.max(list.length, 4)];
+                in.readFully(list.data, 0, list.length);
+                index.postings.put(key, list);
+            }
+            return index;
+        }
+    }
+
+    private int add(int parent, String name, boolean isDirectory) {
+        if (count == parents.length) {
+            int capacity = count * 2;
+            parents = Arrays.copyOf(parents, capacity);
+            firstChildren = grow(firstChildren, capacity);
+            nextSiblings = grow(nextSiblings, capacity);
+            flags = Arrays.copyOf(flags, capacity);
+            nameOffsets = Arrays.copyOf(nameOffsets, capacity + 1);
+        }
+        byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+        int offset = nameOffsets[count];
+        if (offset + bytes.length > names.length) {
+            names = Arrays.copyOf(names, Math.max(names.length * 2, offset + bytes.length));
+        }
+        System.arraycopy(bytes, 0, names, offset, bytes.length);
+        int id = count++;
+        nameOffsets[count] = offset + bytes.length;
+        parents[id] = parent;
+        link(id);
+        flags[id] = isDirectory ? DIRECTORY : 0;
+        if (parent != NO_PARENT) {
+            String lower = name.toLowerCase(Locale.ROOT);
+            for (int i = 0; i + 3 <= lower.length(); i++) {
+                Long key = trigram(lower, i);
+                PostingList list = postings.get(key);
+                if (list == null) {
+                    list = new PostingList();
+                    postings.put(key, list);
+                }
+                list.add(id);
+            }
+        }
+        return id;
+    }
+
+    /**
+     * Ids whose names contain every trigram of {@code fragments}, ascending,
+     * or null if the fragments are too short to narrow anything down.
+     */
+    private int[] candidates(List<String> fragments) {
+        List<PostingList> lists = new ArrayList<PostingList>();
+        for (String fragment : fragments) {
+            for (int i = 0; i + 3 <= fragment.length(); i++) {
+                PostingList list = postings.get(trigram(fragment, i));
+                if (list == null) {
+                    return new int[0];
+                }
+                if (!lists.contains(list)) {
+                    lists.add(list);
+                }
+            }
+        }
+        if (lists.isEmpty()) {
+            return null;
+        }
+        // rarest first keeps the intermediate results small
+        Collections.sort(lists, new Comparator<PostingList>() {
+            @Override
+            public int compare(PostingList a, PostingList b) {
+                return Integer.compare(a.size, b.size);
+            }
+        });
+        int[] result = lists.get(0).decode();
+        for (int i = 1; i < lists.size() && result.length > 0; i++) {
+            result = intersect(result, lists.get(i).decode());
+        }
+        return result;
+    }
+
+    private static int[] intersect(int[] a, int[] b) {
+        int[] result = new int[Math.min(a.length, b.length)];
+        int size = 0;
+        int i = 0;
+        int j = 0;
+        while (i < a.length && j < b.length) {
+            if (a[i] < b[j]) {
+                i++;
+            } else if (a[i] > b[j]) {
+                j++;
+            } else {
+                result[size++] = a[i];
+                i++;
+                j++;
+            }
+        }
+        return Arrays.copyOf(result, size);
+    }
+
+    private static Long trigram(String text, int start) {
+        return ((long) text.charAt(start) << 32) | ((long) text.charAt(start + 1) << 16) | text.charAt(start + 2);
+    }
+
+    private void link(int id) {
+        int parent = parents[id];
+        if (parent != NO_PARENT) {
+            nextSiblings[id] = firstChildren[parent];
+            firstChildren[parent] = id;
+        }
+    }
+
+    private static int[] newChain(int capacity) {
+        int[] chain = new int[capacity];
+        Arrays.fill(chain, NONE);
+        return chain;
+    }
+
+    private static int[] grow(int[] chain, int capacity) {
+        int length = chain.length;
+        chain = Arrays.copyOf(chain, capacity);
+        Arrays.fill(chain, length, capacity, NONE);
+        return chain;
+    }
+
+    /** The live child of {@code parent} called {@code name}, or -1. */
+    private int find(int parent, String name) {
+        byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+        for (int id = firstChildren[parent]; id != NONE; id = nextSiblings[id]) {
+            int offset = nameOffsets[id];
+            if (nameOffsets[id + 1] - offset == bytes.length && !deleted.get(id)) {
+                int i = 0;
+                while (i < bytes.length && names[offset + i] == bytes[i]) {
+                    i++;
+                }
+                if (i == bytes.length) {
+                    return id;
+                }
+            }
+        }
+        return -1;
+    }
+
+    /** The live children of {@code parent} by name. */
+    private Map<String, Integer> children(int parent) {
+        Map<String, Integer> children = new HashMap<String, Integer>();
+        for (int id = firstChildren[parent]; id != NONE; id = nextSiblings[id]) {
+            if (!deleted.get(id)) {
+                children.put(name(id), id);
+            }
+        }
+        return children;
+    }
+
+    private static int lookup(Map<String, Integer> children, String name) {
+        Integer id = children.get(name);
+        return id == null ? -1 : id;
+    }
+
+    /**
+     * The id of the live directory {@code directory}, found by walking down
+     * from its root, or -1 if it is not in the index.
+     */
+    private int directoryId(File directory) {
+        Integer known = directoryIds.get(directory);
+        if (known != null && isLive(known)) {
+            return known;
+        }
+        List<String> path = new ArrayList<String>();
+        for (File current = directory; current != null; current = current.getParentFile()) {
+            for (int root = 0; root < roots.size() && root < count; root++) {
+                if (parents[root] == NO_PARENT && !deleted.get(root) && current.getPath().equals(name(root))) {
+                    int id = root;
+                    for (int i = path.size() - 1; i >= 0 && id >= 0; i--) {
+                        id = find(id, path.get(i));
+                    }
+                    if (id >= 0 && (flags[id] & DIRECTORY) != 0) {
+                        directoryIds.put(directory, id);
+                        return id;
+                    }
+                    return -1;
+                }
+            }
+            path.add(current.getName());
+        }
+        return -1;
+    }
+
+    private String name(int id) {
+        return new String(names, nameOffsets[id], nameOffsets[id + 1] - nameOffsets[id], StandardCharsets.UTF_8);
+    }
+
+    private boolean isLive(int id) {
+        for (int current = id; current != NO_PARENT; current = parents[current]) {
+            if (deleted.get(current)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private File fileOf(int id) {
+        List<String> path = new ArrayList<String>();
+        int current = id;
+        while (parents[current] != NO_PARENT) {
+            path.add(name(current));
+            current = parents[current];
+        }
+        File file = new File(name(current));
+        for (int i = path.size() - 1; i >= 0; i--) {
+            file = new File(file, path.get(i));
+        }
+        return file;
+    }
+}
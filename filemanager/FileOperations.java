@@ -0,0 +1,355 @@
+package filemanager;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+
+/**
+ * The file operations of the file manager without any user interface, for
+ * the Swing workers and the command line alike. Every operation runs on the
+ * calling thread, reports through an {@link IoProgress} and fails with an
+ * exception; none of them leaves partial output behind when it fails or is
+ * cancelled.
+ */
+final class FileOperations {
+    static final int FIRST_LISTING_CHUNK = 256;
+    static final int MAX_LISTING_CHUNK = 8192;
+    static final long LISTING_CHUNK_NANOS = 50000000L;
+
+    /** Receives a listing in chunks. */
+    interface ListingListener {
+        void chunk(FileAttributeSnapshot chunk);
+    }
+
+    /**
+     * Progress of an operation whose size is known before it starts, so it
+     * can be shown as a percentage.
+     */
+    interface SizedProgress extends IoProgress {
+        /** Called once before any progress with the number of bytes to process. */
+        void total(long bytes);
+    }
+
+    private FileOperations() {
+    }
+
+    /**
+     * Lists {@code directory}. Chunks start small and double up to
+     * {@link #MAX_LISTING_CHUNK} entries, but are handed over at least every
+     * {@link #LISTING_CHUNK_NANOS}, so the first rows of a huge or slow
+     * directory show up at once. The last chunk may be empty.
+     *
+     * @param filter entries it rejects are listed without their attributes,
+     *        may be null
+     * @return false if cancelled
+     */
+    static boolean list(File directory, boolean skipHidden, FileNameFilter filter, IoProgress progress,
+            ListingListener listener) throws IOException {
+        int chunkSize = FIRST_LISTING_CHUNK;
+        long deadline = System.nanoTime() + LISTING_CHUNK_NANOS;
+        FileAttributeSnapshot.Builder chunk = new FileAttributeSnapshot.Builder(chunkSize, skipHidden, filter);
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory.toPath())) {
+            for (Path child : stream) {
+                if (progress.isCancelled()) {
+                    return false;
+                }
+                chunk.add(child.toFile());
+                progress.advance(1);
+                if (chunk.size() >= chunkSize || System.nanoTime() > deadline) {
+                    listener.chunk(chunk.build());
+                    chunkSize = Math.min(chunkSize * 2, MAX_LISTING_CHUNK);
+                    deadline = System.nanoTime() + LISTING_CHUNK_NANOS;
+                    chunk = new FileAttributeSnapshot.Builder(chunkSize, skipHidden, filter);
+                }
+            }
+        }
+        listener.chunk(chunk.build());
+        return true;
+    }
+
+    /**
+     * Returns a name for a copy of {@code source} in {@code directory} that
+     * is not taken yet: {@code name_Copy.ext}, {@code name_Copy_Copy.ext} and
+     * so on. An interrupted copy of {@code source} that can be resumed keeps
+     * its name.
+     */
+    static File copyTarget(File source, File directory) {
+        String name = source.getName();
+        File target;
+        do {
+            int dot = name.lastIndexOf('.');
+            name = dot >= 0 ? name.substring(0, dot) + "_Copy" + name.substring(dot) : name + "_Copy";
+            target = new File(directory, name);
+        } while (target.exists() && !FileCopier.canResume(source, target));
+        return target;
+    }
+
+    /**
+     * Copies the file or directory tree {@code source} to {@code target},
+     * which must not exist yet. Single files report their size up front,
+     * trees are copied in parallel without a total. Files of at least
+     * {@link FileCopier#RESUMABLE_THRESHOLD} bytes are copied resumably: if
+     * such a copy fails, the partial target stays and copying again to the
+     * same target continues from its last checkpoint.
+     */
+    static void copy(File source, File target, SizedProgress progress) throws IOException {
+        copy(source, target, null, progress);
+    }
+
+    /**
+     * Copies like {@link #copy(File, File, SizedProgress)} and, with a
+     * {@code verify} algorithm, checks every copied file against a checksum
+     * taken while it was copied. The total then includes reading the copy
+     * back. A copy that differs is removed and fails the operation.
+     *
+     * @param verify checksum algorithm for {@link ContentHash}, null for none
+     * @return what was verified: algorithm and checksum of a file, or the
+     *         number of files of a tree; null without {@code verify}
+     */
+    static String copy(File source, File target, String verify, SizedProgress progress) throws IOException {
+        if (source.isFile() && source.length() >= FileCopier.RESUMABLE_THRESHOLD) {
+            return copyResumable(source, target, verify, progress);
+        }
+        if (target.exists()) {
+            throw new IOException("Already exists: " + target);
+        }
+        boolean created = false;
+        boolean copied = false;
+        String verified = null;
+        try {
+            if (source.isDirectory()) {
+                created = target.mkdir();
+                if (!created) {
+                    throw new IOException("Can not create directory " + target);
+                }
+                progress.total(-1);
+                long files = new ParallelTreeCopier(ParallelTreeCopier.DEFAULT_PARALLELISM, verify)
+                        .copy(source.toPath(), target.toPath(), progress);
+                if (verify != null) {
+                    verified = files + " files with " + ContentHash.create(verify).getAlgorithm();
+                }
+            } else {
+                created = target.createNewFile();
+                if (!created) {
+                    throw new IOException("Can not create " + target);
+                }
+                target.setReadable(source.canRead());
+                target.setWritable(source.canWrite());
+                target.setExecutable(source.canExecute());
+                if (verify != null) {
+                    progress.total(2 * source.length());
+                    verified = FileCopier.copyVerified(source, target, verify, progress);
+                } else {
+                    progress.total(source.length());
+                    FileCopier.copy(source, target, progress);
+                }
+            }
+            copied = true;
+        } finally {
+            if (created && !copied) {
+                deleteQuietly(target.toPath());
+            }
+        }
+        return verified;
+    }
+
+    private static String copyResumable(File source, File target, String verify, SizedProgress progress)
+            throws IOException {
+        if (target.exists() && !FileCopier.canResume(source, target)) {
+            throw new IOException("Already exists: " + target);
+        }
+        ContentHash hash = verify == null ? null : ContentHash.create(verify);
+        progress.total(hash == null ? source.length() : 2 * source.length());
+        try {
+            FileCopier.copyResumable(source, target, hash, progress);
+        } catch (CancellationException e) {
+            // cancelled on purpose, nothing to resume
+            FileCopier.discard(target);
+            throw e;
+        } catch (IOException e) {
+            throw new IOException((e.getMessage() == null ? e.toString() : e.getMessage())
+                    + ", copying again resumes", e);
+        }
+        String verified = null;
+        if (hash != null) {
+            try {
+                verified = FileCopier.verify(target, hash, progress);
+            } catch (IOException | CancellationException e) {
+                FileCopier.discard(target);
+                throw e;
+            }
+        }
+        target.setReadable(source.canRead());
+        target.setWritable(source.canWrite());
+        target.setExecutable(source.canExecute());
+        return verified;
+    }
+
+    /**
+     * Moves {@code source} to {@code target}, which must not exist yet: an
+     * atomic rename when both are on the same file store, otherwise a copy
+     * followed by a delete of the source.
+     */
+    static void move(File source, File target, SizedProgress progress) throws IOException {
+        move(source, target, null, progress);
+    }
+
+    /**
+     * Moves like {@link #move(File, File, SizedProgress)}; a move that has
+     * to copy verifies the copy before the source is deleted.
+     *
+     * @return what was verified, see {@link #copy(File, File, String, SizedProgress)};
+     *         null for a rename, which does not touch the data
+     */
+    static String move(File source, File target, String verify, SizedProgress progress) throws IOException {
+        if (rename(source, target)) {
+            progress.total(0);
+            return null;
+        }
+        String verified = copy(source, target, verify, progress);
+        delete(source, IoProgress.NONE);
+        return verified;
+    }
+
+    /**
+     * Moves {@code source} to {@code target}, which must not exist yet, with
+     * one atomic rename, however big a tree it is.
+     *
+     * @return false if source and target are on different file stores and
+     *         nothing was done, the caller has to copy
+     */
+    static boolean rename(File source, File target) throws IOException {
+        Path from = source.getAbsoluteFile().toPath();
+        Path to = target.getAbsoluteFile().toPath();
+        if (Files.exists(to, LinkOption.NOFOLLOW_LINKS)) {
+            throw new IOException("Already exists: " + target);
+        }
+        if (to.startsWith(from)) {
+            throw new IOException("Can not move " + source + " into itself");
+        }
+        if (!Files.getFileStore(from).equals(Files.getFileStore(to.getParent()))) {
+            return false;
+        }
+        try {
+            Files.move(from, to, StandardCopyOption.ATOMIC_MOVE);
+            return true;
+        } catch (AtomicMoveNotSupportedException e) {
+            // same store, but e.g. bind mounts of one filesystem
+            return false;
+        }
+    }
+
+    /**
+     * Deletes the file or directory tree {@code file}, trees in parallel.
+     * Reports one unit per deleted entry. What was deleted before a failure
+     * or cancel stays deleted.
+     */
+    static void delete(File file, IoProgress progress) throws IOException {
+        if (!file.isDirectory()) {
+            if (!file.delete() && file.exists()) {
+                throw new IOException("Can not delete " + file);
+            }
+            progress.advance(1);
+            return;
+        }
+        new ParallelTreeDeleter().delete(file.toPath(), progress);
+    }
+
+    /**
+     * Returns where {@link #zip} puts the archive of {@code source}: next to
+     * it, named after it without its extension.
+     */
+    static File zipTarget(File source) {
+        File absolute = source.getAbsoluteFile();
+        String name = absolute.getName();
+        int dot = name.lastIndexOf('.');
+        if (!absolute.isDirectory() && dot > 0) {
+            name = name.substring(0, dot);
+        }
+        return new File(absolute.getParentFile(), name + ".zip");
+    }
+
+    /**
+     * Zips the file or directory tree {@code source} into {@code zipFile},
+     * with entry names relative to the directory, or to the parent of a
+     * single file.
+     */
+    static void zip(File source, File zipFile, CompressionPreset preset, SizedProgress progress)
+            throws IOException {
+        List<File> files = new ArrayList<File>();
+        File absolute = source.getAbsoluteFile();
+        if (absolute.isDirectory()) {
+            collectFiles(absolute, files);
+        } else {
+            files.add(absolute);
+        }
+        Path base = absolute.isDirectory() ? absolute.toPath() : absolute.getParentFile().toPath();
+        long total = 0;
+        for (File file : files) {
+            total += file.length();
+        }
+        progress.total(total);
+        ParallelZipWriter zip = new ParallelZipWriter(zipFile.toPath());
+        boolean complete = false;
+        try {
+            for (File file : files) {
+                String entryName = base.relativize(file.toPath()).toString().replace(File.separatorChar, '/');
+                zip.addFile(file.toPath(), entryName, preset, progress);
+            }
+            zip.close();
+            complete = true;
+        } finally {
+            if (!complete) {
+                zip.abort();
+                zipFile.delete();
+            }
+        }
+    }
+
+    static List<String> listEntries(File zip) throws IOException {
+        return ParallelUnzipper.listEntries(zip);
+    }
+
+    /**
+     * Extracts {@code zip} into {@code directory}.
+     *
+     * @param selected entry names to extract, null for all
+     */
+    static void unzip(File zip, File directory, Collection<String> selected, SizedProgress progress)
+            throws IOException {
+        progress.total(ParallelUnzipper.totalSize(zip, selected));
+        new ParallelUnzipper().extract(zip, directory, selected, progress);
+    }
+
+    /** Best effort removal of the partial output of a failed or cancelled operation. */
+    static void deleteQuietly(Path path) {
+        try {
+            new ParallelTreeDeleter().delete(path, IoProgress.NONE);
+        } catch (IOException | CancellationException e) {
+            // what is left is visible to the user
+        }
+    }
+
+    private static void collectFiles(File directory, List<File> files) throws IOException {
+        File[] children = directory.listFiles();
+        if (children == null) {
+            throw new IOException("Can not read " + directory);
+        }
+        for (File child : children) {
+            if (child.isFile()) {
+                files.add(child);
+            } else if (child.isDirectory()) {
+                collectFiles(child, files);
+            }
+        }
+    }
+}
@@ -0,0 +1,335 @@
+package filemanager;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+import javax.swing.ImageIcon;
+import javax.swing.event.TableModelEvent;
+import javax.swing.table.AbstractTableModel;
+
+class FileTableModel extends AbstractTableModel {
+
+    private static final int MAX_REMOVED_RANGES = 64;
+
+    private FileAttributeSnapshot files;
+    private String[] iconKeys;
+    private SystemIconCache iconCache;
+    private Map<File, DirectorySizeService.DirectorySize> directorySizes =
+            new HashMap<File, DirectorySizeService.DirectorySize>();
+    // file to row, built on demand and dropped whenever rows move
+    private Map<File, Integer> rowIndex;
+    // group number of each row, shown in an extra column; null for a plain listing
+    private int[] groups;
+    private String[] columns = { "Icon", "File", "Path/Name", "Size", "Last Modified", "R", "W", "E", "D", "F", };
+
+    FileTableModel(SystemIconCache iconCache) {
+        this(iconCache, FileAttributeSnapshot.EMPTY);
+    }
+
+    FileTableModel(SystemIconCache iconCache, FileAttributeSnapshot files) {
+        this.iconCache = iconCache;
+        this.files = files;
+        this.iconKeys = new String[files.size()];
+        iconCache.addListener(new SystemIconCache.Listener() {
+            @Override
+            public void systemInfoResolved(Set<Object> keys) {
+                fireRowsResolved(keys);
+            }
+        });
+    }
+
+    public Object getValueAt(int row, int column) {
+        File file = files.getFile(row);
+        switch (column) {
+        case 0:
+            boolean directory = files.is(row, FileAttributeSnapshot.DIRECTORY);
+            if (iconKeys[row] == null) {
+                iconKeys[row] = iconCache.iconKey(file, directory);
+            }
+            return iconCache.getIcon(file, directory);
+        case 1:
+            return iconCache.getDisplayName(file);
+        case 2:
+            return file.getPath();
+        case 3:
+            if (files.is(row, FileAttributeSnapshot.DIRECTORY)) {
+                return directorySizes.get(file);
+            }
+            return files.getLength(row);
+        case 4:
+            return files.getLastModified(row);
+        case 5:
+            return files.is(row, FileAttributeSnapshot.READABLE);
+        case 6:
+            return files.is(row, FileAttributeSnapshot.WRITABLE);
+        case 7:
+            return files.is(row, FileAttributeSnapshot.EXECUTABLE);
+        case 8:
+            return files.is(row, FileAttributeSnapshot.DIRECTORY);
+        case 9:
+            return files.is(row, FileAttributeSnapshot.FILE);
+        case 10:
+            return groups[row] > 0 ? Integer.valueOf(groups[row]) : null;
+        default:
+            System.err.println("Error");
+        }
+        return "";
+    }
+
+    public int getColumnCount() {
+        return groups == null ? columns.length : columns.length + 1;
+    }
+
+    public Class<?> getColumnClass(int column) {
+        switch (column) {
+        case 0:
+            return ImageIcon.class;
+        case 3:
+            return Long.class;
+        case 4:
+            return Date.class;
+        case 5:
+        case 6:
+        case 7:
+        case 8:
+        case 9:
+            return Boolean.class;
+        case 10:
+            return Integer.class;
+        }
+        return String.class;
+    }
+
+    public String getColumnName(int column) {
+        return column < columns.length ? columns[column] : "Group";
+    }
+
+    public int getRowCount() {
+        return files.size();
+    }
+
+    public File getFile(int row) {
+        return files.getFile(row);
+    }
+
+    public FileAttributeSnapshot getFiles() {
+        return files;
+    }
+
+    public void setFiles(FileAttributeSnapshot files) {
+        setFiles(files, null);
+    }
+
+    /**
+     * @param groups the group of each row, numbered from 1, for rows that
+     *        belong together such as duplicates; shown in a Group column.
+     *        Null for none.
+     */
+    void setFiles(FileAttributeSnapshot files, int[] groups) {
+        boolean columnsChanged = (groups == null) != (this.groups == null);
+        this.files = files;
+        this.groups = groups;
+        this.iconKeys = new String[files.size()];
+        directorySizes.clear();
+        rowIndex = null;
+        if (columnsChanged) {
+            fireTableStructureChanged();
+        } else {
+            fireTableDataChanged();
+        }
+    }
+
+    int[] getGroups() {
+        return groups;
+    }
+
+    void replaceAttributes(FileAttributeSnapshot files) {
+        this.files = files;
+    }
+
+    public void appendFiles(FileAttributeSnapshot chunk) {
+        int first = files.size();
+        files = files.append(chunk);
+        rowIndex = null;
+        if (groups != null) {
+            groups = Arrays.copyOf(groups, files.size());
+        }
+        if (files.size() > iconKeys.length) {
+            iconKeys = Arrays.copyOf(iconKeys, Math.max(files.size(), iconKeys.length * 2));
+        }
+        if (files.size() > first) {
+            fireTableRowsInserted(first, files.size() - 1);
+        }
+    }
+
+    /**
+     * Applies a batch from the {@link DirectoryWatcher}: known entries are
+     * updated in place, new ones appended and removed ones deleted, each as
+     * row events so the selection and sort order survive.
+     */
+    void applyChanges(FileAttributeSnapshot changed, Set<File> removed) {
+        Map<File, Integer> rows = rowIndex();
+
+        int[] updatedRows = new int[changed.size()];
+        int[] updatedSources = new int[changed.size()];
+        int[] added = new int[changed.size()];
+        int updates = 0;
+        int additions = 0;
+        for (int i = 0; i < changed.size(); i++) {
+            Integer row = rows.get(changed.getFile(i));
+            if (row != null) {
+                updatedRows[updates] = row;
+                updatedSources[updates++] = i;
+            } else {
+                added[additions++] = i;
+            }
+        }
+        if (updates > 0) {
+            files = files.withEntries(updatedRows, changed, updatedSources, updates);
+            int first = Integer.MAX_VALUE;
+            int last = -1;
+            for (int i = 0; i < updates; i++) {
+                iconKeys[updatedRows[i]] = null;
+                directorySizes.remove(files.getFile(updatedRows[i]));
+                first = Math.min(first, updatedRows[i]);
+                last = Math.max(last, updatedRows[i]);
+            }
+            fireTableRowsUpdated(first, last);
+        }
+        if (additions > 0) {
+            appendFiles(changed.select(added, additions));
+        }
+
+        int[] removedRows = new int[removed.size()];
+        int removals = 0;
+        for (File file : removed) {
+            Integer row = rows.get(file);
+            if (row != null) {
+                removedRows[removals++] = row;
+                directorySizes.remove(file);
+            }
+        }
+        if (removals > 0) {
+            Arrays.sort(removedRows, 0, removals);
+            removeRows(removedRows, removals);
+        }
+    }
+
+    /**
+     * Shows computed directory sizes. The sizes also replace the directory
+     * lengths in the snapshot so that sorting by size orders them.
+     */
+    void setDirectorySizes(Map<File, DirectorySizeService.DirectorySize> sizes) {
+        Map<File, Integer> rows = rowIndex();
+        int[] updatedRows = new int[sizes.size()];
+        long[] lengths = new long[sizes.size()];
+        int updates = 0;
+        int first = Integer.MAX_VALUE;
+        int last = -1;
+        for (Map.Entry<File, DirectorySizeService.DirectorySize> entry : sizes.entrySet()) {
+            Integer row = rows.get(entry.getKey());
+            if (row != null && files.is(row, FileAttributeSnapshot.DIRECTORY)) {
+                directorySizes.put(entry.getKey(), entry.getValue());
+                updatedRows[updates] = row;
+                lengths[updates++] = entry.getValue().bytes;
+                first = Math.min(first, row);
+                last = Math.max(last, row);
+            }
+        }
+        if (updates > 0) {
+            files = files.withLengths(updatedRows, lengths, updates);
+            fireTableChanged(new TableModelEvent(this, first, last, 3));
+        }
+    }
+
+    private Map<File, Integer> rowIndex() {
+        if (rowIndex == null) {
+            rowIndex = new HashMap<File, Integer>();
+            for (int row = 0; row < files.size(); row++) {
+                rowIndex.put(files.getFile(row), row);
+            }
+        }
+        return rowIndex;
+    }
+
+    private void removeRows(int[] sortedRows, int length) {
+        rowIndex = null;
+        int ranges = 1;
+        for (int i = 1; i < length; i++) {
+            if (sortedRows[i] != sortedRows[i - 1] + 1) {
+                ranges++;
+            }
+        }
+        if (ranges > MAX_REMOVED_RANGES) {
+            // one event per range would cost a copy of the listing each
+            boolean[] gone = new boolean[files.size()];
+            for (int i = 0; i < length; i++) {
+                gone[sortedRows[i]] = true;
+            }
+            int[] kept = new int[files.size() - length];
+            int size = 0;
+            for (int row = 0; row < gone.length; row++) {
+                if (!gone[row]) {
+                    kept[size++] = row;
+                }
+            }
+            setFiles(files.select(kept, size), groups == null ? null : select(groups, kept, size));
+            return;
+        }
+        // highest range first so the lower row numbers stay valid
+        int end = length - 1;
+        while (end >= 0) {
+            int start = end;
+            while (start > 0 && sortedRows[start - 1] == sortedRows[start] - 1) {
+                start--;
+            }
+            int firstRow = sortedRows[start];
+            int lastRow = sortedRows[end];
+            int[] kept = new int[files.size() - (lastRow - firstRow + 1)];
+            int size = 0;
+            for (int row = 0; row < files.size(); row++) {
+                if (row < firstRow || row > lastRow) {
+                    kept[size++] = row;
+                }
+            }
+            files = files.select(kept, size);
+            if (groups != null) {
+                groups = select(groups, kept, size);
+            }
+            String[] keys = new String[Math.max(iconKeys.length - (lastRow - firstRow + 1), size)];
+            System.arraycopy(iconKeys, 0, keys, 0, firstRow);
+            System.arraycopy(iconKeys, lastRow + 1, keys, firstRow, size - firstRow);
+            iconKeys = keys;
+            fireTableRowsDeleted(firstRow, lastRow);
+            end = start - 1;
+        }
+    }
+
+    private static int[] select(int[] values, int[] indexes, int length) {
+        int[] selected = new int[length];
+        for (int i = 0; i < length; i++) {
+            selected[i] = values[indexes[i]];
+        }
+        return selected;
+    }
+
+    private void fireRowsResolved(Set<Object> keys) {
+        int first = -1;
+        int rows = files.size();
+        for (int row = 0; row <= rows; row++) {
+            boolean changed = row < rows && iconKeys[row] != null
+                    && (keys.contains(iconKeys[row]) || keys.contains(files.getFile(row)));
+            if (changed && first < 0) {
+                first = row;
+            } else if (!changed && first >= 0) {
+                fireTableChanged(new TableModelEvent(this, first, row - 1, 0));
+                fireTableChanged(new TableModelEvent(this, first, row - 1, 1));
+                first = -1;
+            }
+        }
+    }
+}
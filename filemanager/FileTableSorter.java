@@ -0,0 +1,489 @@
+package filemanager;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import javax.swing.RowSorter;
+import javax.swing.SortOrder;
+import javax.swing.SwingUtilities;
+
+/**
+ * Row sorter for {@link FileTableModel} that sorts and filters on a
+ * background thread. Orderings are plain {@code int[]} permutations computed
+ * from the model's attribute snapshot and swapped in on the EDT in one step.
+ * Small tables are still sorted synchronously, which avoids a flash of
+ * unsorted rows when a listing starts.
+ */
+final class FileTableSorter extends RowSorter<FileTableModel> {
+    private static final int SYNC_THRESHOLD = 4096;
+    private static final int MAX_SORT_KEYS = 3;
+
+    private static final ExecutorService SORTER = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "file-table-sorter");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private final FileTableModel model;
+    private List<SortKey> sortKeys = Collections.emptyList();
+    private FileNameFilter filter;
+    // null while the view is the model order with nothing filtered out
+    private int[] viewToModel;
+    private int[] modelToView;
+    // bumped by every resort, a sort that is not the latest is skipped if it has not started yet
+    private volatile int generation;
+    // bumped when rows, filter or sort keys change, which makes a finished sort useless
+    private int structure;
+
+    FileTableSorter(FileTableModel model) {
+        this.model = model;
+    }
+
+    @Override
+    public FileTableModel getModel() {
+        return model;
+    }
+
+    FileNameFilter getFilter() {
+        return filter;
+    }
+
+    void setFilter(FileNameFilter filter) {
+        FileNameFilter previous = this.filter;
+        this.filter = filter;
+        structure++;
+        boolean narrowing = filter != null && filter.narrows(previous);
+        resort(narrowing);
+    }
+
+    @Override
+    public void toggleSortOrder(int column) {
+        if (!isSortable(column)) {
+            return;
+        }
+        List<SortKey> keys = new ArrayList<SortKey>(sortKeys);
+        SortOrder order = SortOrder.ASCENDING;
+        for (int i = 0; i < keys.size(); i++) {
+            if (keys.get(i).getColumn() == column) {
+                if (i == 0 && keys.get(i).getSortOrder() == SortOrder.ASCENDING) {
+                    order = SortOrder.DESCENDING;
+                }
+                keys.remove(i);
+                break;
+            }
+        }
+        keys.add(0, new SortKey(column, order));
+        if (keys.size() > MAX_SORT_KEYS) {
+            keys = keys.subList(0, MAX_SORT_KEYS);
+        }
+        setSortKeys(keys);
+    }
+
+    @Override
+    public void setSortKeys(List<? extends SortKey> keys) {
+        List<SortKey> sorted = new ArrayList<SortKey>();
+        if (keys != null) {
+            for (SortKey key : keys) {
+                if (isSortable(key.getColumn()) && key.getSortOrder() != SortOrder.UNSORTED) {
+                    sorted.add(key);
+                }
+            }
+        }
+        if (!sorted.equals(sortKeys)) {
+            sortKeys = Collections.unmodifiableList(sorted);
+            structure++;
+            fireSortOrderChanged();
+            resort(false);
+        }
+    }
+
+    @Override
+    public List<? extends SortKey> getSortKeys() {
+        return sortKeys;
+    }
+
+    @Override
+    public int convertRowIndexToModel(int index) {
+        if (viewToModel == null) {
+            if (index < 0 || index >= model.getRowCount()) {
+                throw new IndexOutOfBoundsException("Invalid index");
+            }
+            return index;
+        }
+        return viewToModel[index];
+    }
+
+    @Override
+    public int convertRowIndexToView(int index) {
+        if (modelToView == null) {
+            if (index < 0 || index >= model.getRowCount()) {
+                throw new IndexOutOfBoundsException("Invalid index");
+            }
+            return index;
+        }
+        return modelToView[index];
+    }
+
+    @Override
+    public int getViewRowCount() {
+        return viewToModel == null ? model.getRowCount() : viewToModel.length;
+    }
+
+    @Override
+    public int getModelRowCount() {
+        return model.getRowCount();
+    }
+
+    @Override
+    public void modelStructureChanged() {
+        // keys on columns the model no longer has go
+        List<SortKey> kept = new ArrayList<SortKey>();
+        for (SortKey key : sortKeys) {
+            if (isSortable(key.getColumn())) {
+                kept.add(key);
+            }
+        }
+        if (!kept.equals(sortKeys)) {
+            sortKeys = Collections.unmodifiableList(kept);
+            fireSortOrderChanged();
+        }
+        allRowsChanged();
+    }
+
+    @Override
+    public void allRowsChanged() {
+        generation++;
+        structure++;
+        viewToModel = null;
+        modelToView = null;
+        if (isActive() || hasUnread(model.getFiles(), 0, model.getRowCount())) {
+            resort(false);
+        }
+    }
+
+    @Override
+    public void rowsInserted(int firstRow, int endRow) {
+        structure++;
+        if (!isActive()) {
+            // rows listed while a filter was still set
+            if (hasUnread(model.getFiles(), firstRow, endRow + 1)) {
+                resort(false);
+            }
+            return;
+        }
+        if (viewToModel == null) {
+            resort(false);
+            return;
+        }
+        // show the new rows at the end right away, the background sort moves them
+        FileAttributeSnapshot files = model.getFiles();
+        int[] view = new int[viewToModel.length + (endRow - firstRow + 1)];
+        int size = 0;
+        for (int modelIndex : viewToModel) {
+            view[size++] = modelIndex < firstRow ? modelIndex : modelIndex + (endRow - firstRow + 1);
+        }
+        for (int row = firstRow; row <= endRow; row++) {
+            if (accept(files, row)) {
+                view[size++] = row;
+            }
+        }
+        setMapping(Arrays.copyOf(view, size), model.getRowCount());
+        resort(false);
+    }
+
+    @Override
+    public void rowsDeleted(int firstRow, int endRow) {
+        structure++;
+        if (!isActive() || viewToModel == null) {
+            return;
+        }
+        int removed = endRow - firstRow + 1;
+        int[] view = new int[viewToModel.length];
+        int size = 0;
+        for (int modelIndex : viewToModel) {
+            if (modelIndex < firstRow) {
+                view[size++] = modelIndex;
+            } else if (modelIndex > endRow) {
+                view[size++] = modelIndex - removed;
+            }
+        }
+        setMapping(Arrays.copyOf(view, size), model.getRowCount());
+    }
+
+    @Override
+    public void rowsUpdated(int firstRow, int endRow) {
+        if (isActive()) {
+            resort(false);
+        }
+    }
+
+    @Override
+    public void rowsUpdated(int firstRow, int endRow, int column) {
+        // icon, name and path come from the File itself and never change for a row
+        if (column <= 2) {
+            return;
+        }
+        for (SortKey key : sortKeys) {
+            if (key.getColumn() == column) {
+                resort(false);
+                return;
+            }
+        }
+    }
+
+    private boolean isActive() {
+        return !sortKeys.isEmpty() || filter != null;
+    }
+
+    private static boolean hasUnread(FileAttributeSnapshot files, int from, int to) {
+        for (int row = from; row < to; row++) {
+            if (files.is(row, FileAttributeSnapshot.UNREAD)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Returns whether a row {@code filter} lets through still has its attributes to be read. */
+    private static boolean mustRead(FileAttributeSnapshot files, int[] candidates, FileNameFilter filter) {
+        int rows = candidates == null ? files.size() : candidates.length;
+        for (int i = 0; i < rows; i++) {
+            int row = candidates == null ? i : candidates[i];
+            if (files.is(row, FileAttributeSnapshot.UNREAD)
+                    && (filter == null || filter.accept(files.getFile(row).getName()))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean isSortable(int column) {
+        return column > 0 && column < model.getColumnCount();
+    }
+
+    private boolean accept(FileAttributeSnapshot files, int row) {
+        return filter == null || filter.accept(files.getFile(row).getName());
+    }
+
+    private void setMapping(int[] view, int rows) {
+        viewToModel = view;
+        modelToView = new int[rows];
+        Arrays.fill(modelToView, -1);
+        for (int i = 0; i < view.length; i++) {
+            modelToView[view[i]] = i;
+        }
+    }
+
+    /**
+     * Computes a new ordering for the current model contents. Runs inline for
+     * small tables with all attributes read and on the sorter thread
+     * otherwise. A background result
+     * is dropped if rows, filter or sort keys changed in the meantime; if
+     * only attributes changed, such as directory sizes coming in, its order
+     * is still shown and the rows are sorted once more, so a sort slower
+     * than the updates still gets on screen. Rows a filter left unread are
+     * read here too, also once no filter is left.
+     */
+    private void resort(boolean narrowing) {
+        final int current = ++generation;
+        final FileAttributeSnapshot files = model.getFiles();
+        final int[] groups = model.getGroups();
+        final List<SortKey> keys = sortKeys;
+        final FileNameFilter activeFilter = filter;
+        final int[] candidates = narrowing ? viewToModel : null;
+        final boolean active = isActive();
+        final int currentStructure = structure;
+        if (!active && !hasUnread(files, 0, files.size())) {
+            apply(null, files);
+            return;
+        }
+        // reading attributes is filesystem I/O, never done on the EDT
+        if ((candidates == null ? files.size() : candidates.length) <= SYNC_THRESHOLD
+                && !mustRead(files, candidates, activeFilter)) {
+            Result result = compute(files, groups, candidates, keys, activeFilter);
+            apply(active ? result.view : null, result.files);
+            return;
+        }
+        SORTER.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (generation != current) {
+                    return;
+                }
+                final Result result = compute(files, groups, candidates, keys, activeFilter);
+                SwingUtilities.invokeLater(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (structure != currentStructure) {
+                            return;
+                        }
+                        if (generation == current && model.getFiles() == files) {
+                            apply(active ? result.view : null, result.files);
+                            return;
+                        }
+                        // only attributes changed, the order is a little stale but keeps the newer attributes
+                        apply(active ? result.view : null, model.getFiles());
+                        if (generation == current) {
+                            // changed without a row event, e.g. a directory size, and no sort is queued yet
+                            resort(false);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    private void apply(int[] view, FileAttributeSnapshot files) {
+        int[] previous = viewToModel;
+        if (previous == null) {
+            previous = identity(getViewRowCount());
+        }
+        if (files != model.getFiles()) {
+            model.replaceAttributes(files);
+        }
+        if (view == null) {
+            viewToModel = null;
+            modelToView = null;
+        } else {
+            setMapping(view, files.size());
+        }
+        fireRowSorterChanged(previous);
+    }
+
+    private static final class Result {
+        final int[] view;
+        final FileAttributeSnapshot files;
+
+        Result(int[] view, FileAttributeSnapshot files) {
+            this.view = view;
+            this.files = files;
+        }
+    }
+
+    private static Result compute(FileAttributeSnapshot files, int[] groups, int[] candidates, List<SortKey> keys,
+            FileNameFilter filter) {
+        int rows = candidates == null ? files.size() : candidates.length;
+        int[] view = new int[rows];
+        int size = 0;
+        int[] unread = new int[rows];
+        int unreadCount = 0;
+        for (int i = 0; i < rows; i++) {
+            int row = candidates == null ? i : candidates[i];
+            if (filter == null || filter.accept(files.getFile(row).getName())) {
+                view[size++] = row;
+                if (files.is(row, FileAttributeSnapshot.UNREAD)) {
+                    unread[unreadCount++] = row;
+                }
+            }
+        }
+        if (unreadCount > 0) {
+            files = files.withAttributesRead(unread, unreadCount);
+        }
+        view = Arrays.copyOf(view, size);
+        if (!keys.isEmpty()) {
+            sort(view, new RowComparator(files, groups, keys));
+        }
+        return new Result(view, files);
+    }
+
+    private static int[] identity(int size) {
+        int[] rows = new int[size];
+        for (int i = 0; i < size; i++) {
+            rows[i] = i;
+        }
+        return rows;
+    }
+
+    private static final class RowComparator {
+        private final FileAttributeSnapshot files;
+        private final int[] groups;
+        private final int[] columns;
+        private final boolean[] descending;
+
+        RowComparator(FileAttributeSnapshot files, int[] groups, List<SortKey> keys) {
+            this.files = files;
+            this.groups = groups;
+            this.columns = new int[keys.size()];
+            this.descending = new boolean[keys.size()];
+            for (int i = 0; i < columns.length; i++) {
+                columns[i] = keys.get(i).getColumn();
+                descending[i] = keys.get(i).getSortOrder() == SortOrder.DESCENDING;
+            }
+        }
+
+        int compare(int a, int b) {
+            for (int i = 0; i < columns.length; i++) {
+                int result = compareColumn(columns[i], a, b);
+                if (result != 0) {
+                    return descending[i] ? -result : result;
+                }
+            }
+            return a < b ? -1 : (a == b ? 0 : 1);
+        }
+
+        private int compareColumn(int column, int a, int b) {
+            switch (column) {
+            case 1:
+                return files.getFile(a).getName().compareToIgnoreCase(files.getFile(b).getName());
+            case 2:
+                return files.getFile(a).getPath().compareTo(files.getFile(b).getPath());
+            case 3:
+                return Long.compare(files.getLength(a), files.getLength(b));
+            case 4:
+                return Long.compare(files.getLastModified(a), files.getLastModified(b));
+            case 5:
+                return compareFlag(FileAttributeSnapshot.READABLE, a, b);
+            case 6:
+                return compareFlag(FileAttributeSnapshot.WRITABLE, a, b);
+            case 7:
+                return compareFlag(FileAttributeSnapshot.EXECUTABLE, a, b);
+            case 8:
+                return compareFlag(FileAttributeSnapshot.DIRECTORY, a, b);
+            case 9:
+                return compareFlag(FileAttributeSnapshot.FILE, a, b);
+            case 10:
+                return groups == null ? 0 : Integer.compare(groups[a], groups[b]);
+            }
+            return 0;
+        }
+
+        private int compareFlag(int flag, int a, int b) {
+            return Boolean.compare(files.is(a, flag), files.is(b, flag));
+        }
+    }
+
+    // stable merge sort over row indexes, avoids boxing to Integer
+    private static void sort(int[] rows, RowComparator comparator) {
+        int[] buffer = new int[rows.length];
+        for (int width = 1; width < rows.length; width *= 2) {
+            for (int low = 0; low < rows.length - width; low += 2 * width) {
+                int mid = low + width;
+                int high = Math.min(low + 2 * width, rows.length);
+                if (comparator.compare(rows[mid - 1], rows[mid]) <= 0) {
+                    continue;
+                }
+                int i = low;
+                int j = mid;
+                int k = low;
+                while (i < mid && j < high) {
+                    buffer[k++] = comparator.compare(rows[i], rows[j]) <= 0 ? rows[i++] : rows[j++];
+                }
+                while (i < mid) {
+                    buffer[k++] = rows[i++];
+                }
+                while (j < high) {
+                    buffer[k++] = rows[j++];
+                }
+                System.arraycopy(buffer, low, rows, low, high - low);
+            }
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package filemanager;
+
+import java.io.File;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.swing.event.TreeModelEvent;
+import javax.swing.event.TreeModelListener;
+import javax.swing.tree.DefaultMutableTreeNode;
+import javax.swing.tree.DefaultTreeModel;
+import javax.swing.tree.TreeNode;
+
+/**
+ * Maps directories to their nodes in the tree, whether or not the node is
+ * visible. The index follows the model's insert and remove events, so nodes
+ * must be added through the {@link DefaultTreeModel} once it is created.
+ */
+class FileTreeIndex implements TreeModelListener {
+    private final DefaultTreeModel treeModel;
+    private final Map<File, DefaultMutableTreeNode> nodes = new HashMap<File, DefaultMutableTreeNode>();
+
+    FileTreeIndex(DefaultTreeModel treeModel) {
+        this.treeModel = treeModel;
+        add((TreeNode) treeModel.getRoot());
+        treeModel.addTreeModelListener(this);
+    }
+
+    /**
+     * Returns the node for {@code file}, or null when the directory is not
+     * in the tree, for instance because its parent was never expanded.
+     */
+    DefaultMutableTreeNode getNode(File file) {
+        if (file == null) {
+            return null;
+        }
+        DefaultMutableTreeNode node = nodes.get(file);
+        if (node != null && node.getRoot() != treeModel.getRoot()) {
+            // detached without a remove event, e.g. below a structure change
+            nodes.remove(file);
+            return null;
+        }
+        return node;
+    }
+
+    @Override
+    public void treeNodesInserted(TreeModelEvent e) {
+        for (Object child : e.getChildren()) {
+            add((TreeNode) child);
+        }
+    }
+
+    @Override
+    public void treeNodesRemoved(TreeModelEvent e) {
+        for (Object child : e.getChildren()) {
+            remove((TreeNode) child);
+        }
+    }
+
+    @Override
+    public void treeStructureChanged(TreeModelEvent e) {
+        add((TreeNode) e.getTreePath().getLastPathComponent());
+    }
+
+    @Override
+    public void treeNodesChanged(TreeModelEvent e) {
+    }
+
+    private void add(TreeNode node) {
+        Enumeration<?> subtree = ((DefaultMutableTreeNode) node).preorderEnumeration();
+        while (subtree.hasMoreElements()) {
+            DefaultMutableTreeNode next = (DefaultMutableTreeNode) subtree.nextElement();
+            if (next.getUserObject() instanceof File) {
+                nodes.put((File) next.getUserObject(), next);
+            }
+        }
+    }
+
+    private void remove(TreeNode node) {
+        Enumeration<?> subtree = ((DefaultMutableTreeNode) node).preorderEnumeration();
+        while (subtree.hasMoreElements()) {
+            DefaultMutableTreeNode next = (DefaultMutableTreeNode) subtree.nextElement();
+            Object file = next.getUserObject();
+            // a replacement may already be indexed under the same file
+            if (file instanceof File && nodes.get(file) == next) {
+                nodes.remove(file);
+            }
+        }
+    }
+}
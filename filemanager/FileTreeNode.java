@@ -0,0 +1,38 @@
+package filemanager;
+
+import java.io.File;
+
+import javax.swing.tree.DefaultMutableTreeNode;
+
+/**
+ * Tree node for a directory whose children are loaded on demand. Until it
+ * is loaded a node claims it may have children, so the tree shows an expand
+ * handle without listing the directory.
+ */
+class FileTreeNode extends DefaultMutableTreeNode {
+    static final int UNLOADED = 0;
+    static final int LOADING = 1;
+    static final int LOADED = 2;
+
+    private int state = UNLOADED;
+
+    FileTreeNode(File file) {
+        super(file, true);
+    }
+
+    FileTreeNode(File file, boolean allowsChildren) {
+        super(file, allowsChildren);
+    }
+
+    File getFile() {
+        return (File) getUserObject();
+    }
+
+    int getState() {
+        return state;
+    }
+
+    void setState(int state) {
+        this.state = state;
+    }
+}
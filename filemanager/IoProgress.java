@@ -0,0 +1,25 @@
+package filemanager;
+
+/**
+ * Progress and cancellation hook for long running file operations. Engines
+ * call it from their worker threads, parallel engines from several at once.
+ */
+interface IoProgress {
+    IoProgress NONE = new IoProgress() {
+        @Override
+        public void advance(long bytes) {
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return false;
+        }
+    };
+
+    /**
+     * Reports that another {@code bytes} bytes were processed.
+     */
+    void advance(long bytes);
+
+    boolean isCancelled();
+}
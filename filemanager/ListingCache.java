@@ -0,0 +1,330 @@
+package filemanager;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Directory listings kept on disk between runs, so a folder that was shown
+ * before can be painted at once while it is listed again in the background.
+ * Every listing is one record appended to a file that is read through a
+ * memory mapping; a record supersedes earlier ones for the same directory.
+ * Records remember the modification time of their directory, which tells
+ * whether entries came or went since. Once the file grows past its cap it
+ * is rewritten with the most recently used half, the rest is dropped.
+ *
+ * <pre>
+ * file   := MAGIC VERSION record*
+ * record := length:int modified:long pathLength:int path count:int entry*
+ * entry  := nameLength:short name size:long mtime:long flags:int
+ * </pre>
+ *
+ * Strings are UTF-8, a torn record at the end is dropped when opening.
+ */
+final class ListingCache {
+    static final long DEFAULT_MAX_BYTES = Long.getLong("filemanager.listingCache.maxBytes", 64L << 20);
+    // bigger listings would crowd out everything else
+    static final int MAX_ENTRIES = 100000;
+    // a directory is modified for unknown, entries could come and go unseen
+    static final long UNKNOWN = Long.MIN_VALUE;
+
+    private static final int MAGIC = 0x464d4c43;
+    private static final int VERSION = 1;
+    private static final int HEADER = 8;
+    // directory times coarser than this could hide a change made right after listing
+    private static final long RACY_MILLIS = 2000;
+
+    /** A cached listing and the modification time of its directory then. */
+    static final class Listing {
+        final long modified;
+        final FileAttributeSnapshot files;
+
+        Listing(long modified, FileAttributeSnapshot files) {
+            this.modified = modified;
+            this.files = files;
+        }
+    }
+
+    private static final class Record {
+        final long offset;
+        final int length;
+
+        Record(long offset, int length) {
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    private final Path file;
+    private final long maxBytes;
+    // least recently used first
+    private final LinkedHashMap<String, Record> records = new LinkedHashMap<String, Record>(64, 0.75f, true);
+    private FileChannel channel;
+    private MappedByteBuffer mapped;
+    private long end;
+    // past the cap after a failed compaction, so it is not retried on every put
+    private long compactAt;
+
+    private ListingCache(Path file, long maxBytes) {
+        this.file = file;
+        this.maxBytes = Math.min(Math.max(maxBytes, 1L << 20), Integer.MAX_VALUE);
+        this.compactAt = this.maxBytes;
+    }
+
+    /** Opens the cache in {@code file}, creating it if needed. */
+    static ListingCache open(Path file, long maxBytes) throws IOException {
+        ListingCache cache = new ListingCache(file, maxBytes);
+        Path parent = file.toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+        cache.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        try {
+            cache.load();
+        } catch (IOException | RuntimeException e) {
+            cache.channel.close();
+            throw e instanceof IOException ? (IOException) e : new IOException("Corrupt listing cache " + file, e);
+        }
+        return cache;
+    }
+
+    private void load() throws IOException {
+        long size = channel.size();
+        ByteBuffer header = ByteBuffer.allocate(HEADER);
+        if (size >= HEADER) {
+            channel.read(header, 0);
+            header.flip();
+        }
+        if (size < HEADER || header.getInt(0) != MAGIC || header.getInt(4) != VERSION) {
+            channel.truncate(0);
+            ByteBuffer empty = ByteBuffer.allocate(HEADER).putInt(MAGIC).putInt(VERSION);
+            empty.flip();
+            writeFully(empty, 0);
+            end = HEADER;
+            return;
+        }
+        mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(size, Integer.MAX_VALUE));
+        long position = HEADER;
+        while (position + 4 <= mapped.limit()) {
+            int length = mapped.getInt((int) position);
+            if (length < 16 || position + 4 + length > mapped.limit()) {
+                break;
+            }
+            int pathLength = mapped.getInt((int) position + 12);
+            if (pathLength < 0 || pathLength > length - 16) {
+                break;
+            }
+            byte[] path = new byte[pathLength];
+            ByteBuffer slice = mapped.duplicate();
+            slice.position((int) position + 16);
+            slice.get(path);
+            records.put(new String(path, StandardCharsets.UTF_8), new Record(position, 4 + length));
+            position += 4 + length;
+        }
+        end = position;
+        if (end < size) {
+            // a torn write from a crash, or garbage
+            mapped = null;
+            channel.truncate(end);
+        }
+    }
+
+    /** Returns the cached listing of {@code directory}, or null. */
+    synchronized Listing get(File directory) throws IOException {
+        Record record = records.get(directory.getAbsolutePath());
+        if (record == null) {
+            return null;
+        }
+        ByteBuffer buffer = map(record);
+        long modified = buffer.getLong(buffer.position() + 4);
+        buffer.position(buffer.position() + 12);
+        buffer.position(buffer.position() + 4 + buffer.getInt());
+        int count = buffer.getInt();
+        File[] files = new File[count];
+        long[] sizes = new long[count];
+        long[] mtimes = new long[count];
+        int[] flags = new int[count];
+        byte[] name = new byte[256];
+        for (int i = 0; i < count; i++) {
+            int nameLength = buffer.getShort() & 0xffff;
+            if (nameLength > name.length) {
+                name = new byte[nameLength];
+            }
+            buffer.get(name, 0, nameLength);
+            files[i] = new File(directory, new String(name, 0, nameLength, StandardCharsets.UTF_8));
+            sizes[i] = buffer.getLong();
+            mtimes[i] = buffer.getLong();
+            flags[i] = buffer.getInt();
+        }
+        return new Listing(modified, FileAttributeSnapshot.of(files, sizes, mtimes, flags));
+    }
+
+    /**
+     * Stores the listing of {@code directory}, made when it was last
+     * modified at {@code modified}. Listings with entries whose attributes
+     * were not read, or with more than {@link #MAX_ENTRIES} entries, are
+     * not stored.
+     */
+    synchronized void put(File directory, long modified, FileAttributeSnapshot listing) throws IOException {
+        if (listing.size() > MAX_ENTRIES) {
+            return;
+        }
+        if (modified > System.currentTimeMillis() - RACY_MILLIS) {
+            modified = UNKNOWN;
+        }
+        byte[] path = directory.getAbsolutePath().getBytes(StandardCharsets.UTF_8);
+        byte[][] names = new byte[listing.size()][];
+        int length = 16 + path.length;
+        for (int i = 0; i < listing.size(); i++) {
+            if (listing.is(i, FileAttributeSnapshot.UNREAD)) {
+                return;
+            }
+            names[i] = listing.getFile(i).getName().getBytes(StandardCharsets.UTF_8);
+            if (names[i].length > 0xffff) {
+                return;
+            }
+            length += 22 + names[i].length;
+        }
+        if (4L + length > maxBytes / 4) {
+            return;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(4 + length);
+        buffer.putInt(length).putLong(modified).putInt(path.length).put(path).putInt(listing.size());
+        for (int i = 0; i < listing.size(); i++) {
+            buffer.putShort((short) names[i].length).put(names[i]);
+            buffer.putLong(listing.getLength(i)).putLong(listing.getLastModified(i)).putInt(listing.getFlags(i));
+        }
+        buffer.flip();
+        writeFully(buffer, end);
+        records.put(directory.getAbsolutePath(), new Record(end, 4 + length));
+        end += 4 + length;
+        if (end > compactAt) {
+            compact();
+        }
+    }
+
+    /**
+     * Rewrites the file with the most recently used records that fit into
+     * half the cap, least recently used first, so the order survives a
+     * restart. The new file replaces the old one, atomically where the
+     * filesystem can.
+     */
+    private void compact() throws IOException {
+        List<Map.Entry<String, Record>> kept = new ArrayList<Map.Entry<String, Record>>(records.entrySet());
+        long keptBytes = 0;
+        int first = kept.size();
+        while (first > 0 && keptBytes + kept.get(first - 1).getValue().length <= maxBytes / 2) {
+            keptBytes += kept.get(--first).getValue().length;
+        }
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        LinkedHashMap<String, Record> compacted = new LinkedHashMap<String, Record>(64, 0.75f, true);
+        long position = HEADER;
+        try (FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER).putInt(MAGIC).putInt(VERSION);
+            header.flip();
+            out.write(header);
+            for (Map.Entry<String, Record> entry : kept.subList(first, kept.size())) {
+                Record record = entry.getValue();
+                ByteBuffer bytes = map(record);
+                bytes.limit(bytes.position() + record.length);
+                while (bytes.hasRemaining()) {
+                    out.write(bytes);
+                }
+                compacted.put(entry.getKey(), new Record(position, record.length));
+                position += record.length;
+            }
+        }
+        mapped = null;
+        channel.close();
+        boolean replaced = false;
+        try {
+            try {
+                Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+            }
+            replaced = true;
+        } finally {
+            // the old file and records stay in use if it could not be replaced, e.g. while still mapped
+            channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            if (!replaced) {
+                Files.deleteIfExists(temp);
+                compactAt = end + maxBytes / 4;
+            }
+        }
+        compactAt = maxBytes;
+        records.clear();
+        records.putAll(compacted);
+        end = position;
+    }
+
+    /** Returns the mapped bytes of {@code record}, positioned at its start. */
+    private ByteBuffer map(Record record) throws IOException {
+        if (mapped == null || record.offset + record.length > mapped.limit()) {
+            mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, end);
+        }
+        ByteBuffer buffer = mapped.duplicate();
+        buffer.position((int) record.offset);
+        return buffer;
+    }
+
+    private void writeFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    /**
+     * Returns the entries of {@code fresh} that are new or whose attributes
+     * differ from those in {@code cached}.
+     */
+    static FileAttributeSnapshot changed(FileAttributeSnapshot cached, FileAttributeSnapshot fresh) {
+        Map<File, Integer> rows = new HashMap<File, Integer>(cached.size() * 2);
+        for (int i = 0; i < cached.size(); i++) {
+            rows.put(cached.getFile(i), i);
+        }
+        int[] changed = new int[fresh.size()];
+        int count = 0;
+        for (int i = 0; i < fresh.size(); i++) {
+            Integer row = rows.get(fresh.getFile(i));
+            if (row == null || cached.getLength(row) != fresh.getLength(i)
+                    || cached.getLastModified(row) != fresh.getLastModified(i)
+                    || cached.getFlags(row) != fresh.getFlags(i)) {
+                changed[count++] = i;
+            }
+        }
+        return fresh.select(changed, count);
+    }
+
+    /** Returns the files of {@code cached} that are missing from {@code fresh}. */
+    static Set<File> removed(FileAttributeSnapshot cached, FileAttributeSnapshot fresh) {
+        Set<File> present = new HashSet<File>(fresh.size() * 2);
+        for (int i = 0; i < fresh.size(); i++) {
+            present.add(fresh.getFile(i));
+        }
+        Set<File> removed = new HashSet<File>();
+        for (int i = 0; i < cached.size(); i++) {
+            if (!present.contains(cached.getFile(i))) {
+                removed.add(cached.getFile(i));
+            }
+        }
+        return removed;
+    }
+}
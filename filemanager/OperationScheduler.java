@@ -0,0 +1,360 @@
+package filemanager;
+
+import java.beans.PropertyChangeEvent;
+import java.beans.PropertyChangeListener;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import javax.swing.SwingUtilities;
+import javax.swing.SwingWorker;
+
+/**
+ * Runs the file manager's {@link SwingWorker}s in place of
+ * {@link SwingWorker#execute()}. Interactive work such as listings starts
+ * right away, up to {@link #INTERACTIVE_THREADS} at a time. Bulk work waits
+ * in a queue until every device it touches has a free slot, so two large
+ * copies on one disk run one after the other instead of seeking against each
+ * other. Background work such as purging deleted trees runs one at a time
+ * on a low priority thread and does not hold a device slot. Cancelling an
+ * operation cancels its worker, which stops at its next check and removes
+ * what it wrote.
+ */
+final class OperationScheduler {
+    static final int INTERACTIVE = 0;
+    static final int BULK = 1;
+    static final int BACKGROUND = 2;
+
+    static final int INTERACTIVE_THREADS = 4;
+    static final int BULK_PER_DEVICE = Integer.getInteger("filemanager.io.perDevice", 1);
+    private static final int FINISHED_HISTORY = 50;
+
+    interface Listener {
+        /** Called on the EDT whenever an operation is queued, starts, progresses or ends. */
+        void operationsChanged();
+    }
+
+    enum State {
+        QUEUED("Queued"), RUNNING("Running"), DONE("Done"), FAILED("Failed"), CANCELLED("Cancelled");
+
+        private final String label;
+
+        State(String label) {
+            this.label = label;
+        }
+
+        @Override
+        public String toString() {
+            return label;
+        }
+    }
+
+    final class Operation implements Comparable<Operation> {
+        private final String description;
+        private final int priority;
+        private final long sequence;
+        private final SwingWorker<?, ?> worker;
+        private final List<Object> devices;
+        private volatile State state = State.QUEUED;
+        private volatile String message;
+
+        private Operation(String description, int priority, long sequence, SwingWorker<?, ?> worker,
+                List<Object> devices) {
+            this.description = description;
+            this.priority = priority;
+            this.sequence = sequence;
+            this.worker = worker;
+            this.devices = devices;
+        }
+
+        String getDescription() {
+            return description;
+        }
+
+        State getState() {
+            return state;
+        }
+
+        int getProgress() {
+            return worker.getProgress();
+        }
+
+        /** Failure message or other note recorded when the operation ended. */
+        String getMessage() {
+            return message;
+        }
+
+        void setMessage(String message) {
+            this.message = message;
+            fireChanged();
+        }
+
+        boolean isInteractive() {
+            return priority == INTERACTIVE;
+        }
+
+        boolean isFinished() {
+            return state == State.DONE || state == State.FAILED || state == State.CANCELLED;
+        }
+
+        void cancel() {
+            OperationScheduler.this.cancel(this);
+        }
+
+        @Override
+        public int compareTo(Operation other) {
+            if (priority != other.priority) {
+                return priority < other.priority ? -1 : 1;
+            }
+            return Long.compare(sequence, other.sequence);
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder text = new StringBuilder(description).append(" - ").append(state);
+            if (state == State.RUNNING && getProgress() > 0) {
+                text.append(' ').append(getProgress()).append('%');
+            }
+            if (message != null) {
+                text.append(": ").append(message);
+            }
+            return text.toString();
+        }
+    }
+
+    private final PriorityQueue<Operation> queue = new PriorityQueue<Operation>();
+    private final List<Operation> running = new ArrayList<Operation>();
+    private final LinkedList<Operation> finished = new LinkedList<Operation>();
+    private final Map<Object, Integer> busyDevices = new HashMap<Object, Integer>();
+    private final List<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+    private final ExecutorService threads = Executors.newCachedThreadPool(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "file-operation");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+    private int interactiveRunning;
+    private int backgroundRunning;
+    private long sequence;
+    private boolean changePending;
+
+    void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Queues {@code worker}. Do not call {@code execute()} on it as well.
+     *
+     * @param paths files the operation reads or writes, used to find the
+     *        devices it occupies; only used for {@link #BULK} work
+     */
+    Operation submit(String description, int priority, SwingWorker<?, ?> worker, File... paths) {
+        List<Object> devices = new ArrayList<Object>();
+        if (priority == BULK) {
+            for (File path : paths) {
+                Object device = deviceOf(path);
+                if (!devices.contains(device)) {
+                    devices.add(device);
+                }
+            }
+        }
+        final Operation operation;
+        synchronized (this) {
+            operation = new Operation(description, priority, sequence++, worker, devices);
+            queue.add(operation);
+        }
+        worker.addPropertyChangeListener(new PropertyChangeListener() {
+            @Override
+            public void propertyChange(PropertyChangeEvent evt) {
+                if ("progress".equals(evt.getPropertyName())) {
+                    fireChanged();
+                }
+            }
+        });
+        dispatch();
+        fireChanged();
+        return operation;
+    }
+
+    /** Running operations first, then queued ones in order, then recently finished ones. */
+    synchronized List<Operation> getOperations() {
+        List<Operation> operations = new ArrayList<Operation>(running);
+        PriorityQueue<Operation> waiting = new PriorityQueue<Operation>(queue);
+        while (!waiting.isEmpty()) {
+            operations.add(waiting.poll());
+        }
+        operations.addAll(finished);
+        return operations;
+    }
+
+    void cancel(Operation operation) {
+        boolean queued;
+        synchronized (this) {
+            queued = queue.remove(operation);
+            if (queued) {
+                finish(operation, State.CANCELLED);
+            }
+        }
+        // a queued worker never runs, cancelling it still calls its done()
+        operation.worker.cancel(true);
+        fireChanged();
+    }
+
+    private void dispatch() {
+        List<Operation> started = new ArrayList<Operation>();
+        synchronized (this) {
+            List<Operation> blocked = new ArrayList<Operation>();
+            Operation next;
+            while ((next = queue.poll()) != null) {
+                if (canStart(next)) {
+                    start(next);
+                    started.add(next);
+                } else {
+                    blocked.add(next);
+                }
+            }
+            queue.addAll(blocked);
+        }
+        for (final Operation operation : started) {
+            threads.execute(new Runnable() {
+                @Override
+                public void run() {
+                    Thread thread = Thread.currentThread();
+                    thread.setPriority(operation.priority == BACKGROUND ? Thread.MIN_PRIORITY : Thread.NORM_PRIORITY);
+                    try {
+                        operation.worker.run();
+                    } finally {
+                        completed(operation);
+                    }
+                }
+            });
+        }
+    }
+
+    private boolean canStart(Operation operation) {
+        if (operation.priority == INTERACTIVE) {
+            return interactiveRunning < INTERACTIVE_THREADS;
+        }
+        if (operation.priority == BACKGROUND) {
+            return backgroundRunning == 0;
+        }
+        for (Object device : operation.devices) {
+            Integer busy = busyDevices.get(device);
+            if (busy != null && busy >= BULK_PER_DEVICE) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void start(Operation operation) {
+        operation.state = State.RUNNING;
+        running.add(operation);
+        if (operation.priority == INTERACTIVE) {
+            interactiveRunning++;
+        } else if (operation.priority == BACKGROUND) {
+            backgroundRunning++;
+        }
+        for (Object device : operation.devices) {
+            Integer busy = busyDevices.get(device);
+            busyDevices.put(device, busy == null ? 1 : busy + 1);
+        }
+    }
+
+    private void completed(Operation operation) {
+        synchronized (this) {
+            running.remove(operation);
+            if (operation.priority == INTERACTIVE) {
+                interactiveRunning--;
+            } else if (operation.priority == BACKGROUND) {
+                backgroundRunning--;
+            }
+            for (Object device : operation.devices) {
+                int busy = busyDevices.get(device) - 1;
+                if (busy == 0) {
+                    busyDevices.remove(device);
+                } else {
+                    busyDevices.put(device, busy);
+                }
+            }
+            State state = State.DONE;
+            if (operation.worker.isCancelled()) {
+                state = State.CANCELLED;
+            } else {
+                try {
+                    operation.worker.get();
+                } catch (Exception e) {
+                    state = State.FAILED;
+                    Throwable cause = e.getCause() == null ? e : e.getCause();
+                    operation.message = cause.getMessage() == null ? cause.toString() : cause.getMessage();
+                }
+            }
+            finish(operation, state);
+        }
+        dispatch();
+        fireChanged();
+    }
+
+    private void finish(Operation operation, State state) {
+        operation.state = state;
+        // listings are too frequent to be worth keeping in the log
+        if (operation.priority != INTERACTIVE || state == State.FAILED) {
+            finished.addFirst(operation);
+            if (finished.size() > FINISHED_HISTORY) {
+                finished.removeLast();
+            }
+        }
+    }
+
+    private void fireChanged() {
+        synchronized (this) {
+            if (changePending) {
+                return;
+            }
+            changePending = true;
+        }
+        SwingUtilities.invokeLater(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (OperationScheduler.this) {
+                    changePending = false;
+                }
+                for (Listener listener : listeners) {
+                    listener.operationsChanged();
+                }
+            }
+        });
+    }
+
+    /**
+     * Identifies the device holding {@code file}: its {@link FileStore}, or
+     * the root of its path if the store can not be determined.
+     */
+    private static Object deviceOf(File file) {
+        Path path = file.getAbsoluteFile().toPath();
+        for (Path existing = path; existing != null; existing = existing.getParent()) {
+            if (Files.exists(existing)) {
+                try {
+                    return Files.getFileStore(existing);
+                } catch (IOException | RuntimeException e) {
+                    break;
+                }
+            }
+        }
+        return String.valueOf(path.getRoot());
+    }
+}
@@ -0,0 +1,204 @@
+package filemanager;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Copies a directory tree on a fork-join pool. Each directory is created
+ * before any of its children are copied, files are copied concurrently in
+ * small batches. The result is the same as a sequential
+ * {@code Files.walkFileTree} copy: links are not followed while walking and
+ * every non-directory entry goes through {@link Files#copy}. With a verify
+ * algorithm, regular files are copied and verified by
+ * {@link FileCopier#copyVerified} instead.
+ */
+final class ParallelTreeCopier {
+    static final int DEFAULT_PARALLELISM = Integer.getInteger("filemanager.copy.parallelism",
+            Math.max(4, 2 * Runtime.getRuntime().availableProcessors()));
+
+    private static final int BATCH_FILES = 64;
+    private static final long BATCH_BYTES = 64L << 20;
+
+    private final int parallelism;
+    private final String verify;
+
+    ParallelTreeCopier() {
+        this(DEFAULT_PARALLELISM);
+    }
+
+    ParallelTreeCopier(int parallelism) {
+        this(parallelism, null);
+    }
+
+    /**
+     * @param verify checksum algorithm for {@link ContentHash}, null to copy
+     *        without verifying
+     */
+    ParallelTreeCopier(int parallelism, String verify) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("parallelism must be at least 1: " + parallelism);
+        }
+        this.parallelism = parallelism;
+        this.verify = verify;
+    }
+
+    /**
+     * Copies the contents of {@code source} into the existing directory
+     * {@code target}. Stops at the first failure and rethrows it.
+     *
+     * @return the number of files verified
+     */
+    long copy(Path source, Path target, IoProgress progress) throws IOException {
+        Run run = new Run(target, progress);
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            pool.invoke(run.new DirectoryTask(source, target));
+        } catch (CancellationException e) {
+            if (run.failure.get() == null) {
+                throw e;
+            }
+        } finally {
+            pool.shutdown();
+        }
+        if (run.failure.get() != null) {
+            throw run.failure.get();
+        }
+        return run.verified.get();
+    }
+
+    private final class Run {
+        private final Path root;
+        private final IoProgress progress;
+        private final AtomicReference<IOException> failure = new AtomicReference<IOException>();
+        private final AtomicLong verified = new AtomicLong();
+        // cancels a verified copy, whose own progress is not reported
+        private final IoProgress stopOnly = new IoProgress() {
+            @Override
+            public void advance(long bytes) {
+            }
+
+            @Override
+            public boolean isCancelled() {
+                return failure.get() != null || progress.isCancelled();
+            }
+        };
+
+        Run(Path root, IoProgress progress) {
+            this.root = root;
+            this.progress = progress;
+        }
+
+        private void checkStopped() {
+            if (failure.get() != null || progress.isCancelled()) {
+                throw new CancellationException();
+            }
+        }
+
+        private void fail(IOException e) {
+            failure.compareAndSet(null, e);
+            throw new CancellationException();
+        }
+
+        final class DirectoryTask extends RecursiveAction {
+            private final Path source;
+            private final Path target;
+
+            DirectoryTask(Path source, Path target) {
+                this.source = source;
+                this.target = target;
+            }
+
+            @Override
+            protected void compute() {
+                List<RecursiveAction> tasks = new ArrayList<RecursiveAction>();
+                FileBatch batch = new FileBatch();
+                try (DirectoryStream<Path> stream = Files.newDirectoryStream(source)) {
+                    for (Path child : stream) {
+                        checkStopped();
+                        if (child.equals(root)) {
+                            // pasting a directory into itself
+                            continue;
+                        }
+                        Path copy = target.resolve(child.getFileName().toString());
+                        BasicFileAttributes attrs = Files.readAttributes(child, BasicFileAttributes.class,
+                                LinkOption.NOFOLLOW_LINKS);
+                        if (attrs.isDirectory()) {
+                            Files.createDirectories(copy);
+                            tasks.add(new DirectoryTask(child, copy));
+                        } else {
+                            batch.add(child, copy, attrs.size());
+                            if (batch.isFull()) {
+                                tasks.add(batch);
+                                batch = new FileBatch();
+                            }
+                        }
+                    }
+                } catch (IOException e) {
+                    fail(e);
+                }
+                if (!batch.isEmpty()) {
+                    tasks.add(batch);
+                }
+                invokeAll(tasks);
+            }
+        }
+
+        private void copyVerified(Path source, Path target) throws IOException {
+            // fails like Files.copy if the target exists
+            Files.createFile(target);
+            FileCopier.copyVerified(source.toFile(), target.toFile(), verify, stopOnly);
+            target.toFile().setExecutable(source.toFile().canExecute());
+            verified.incrementAndGet();
+        }
+
+        final class FileBatch extends RecursiveAction {
+            private final List<Path> sources = new ArrayList<Path>();
+            private final List<Path> targets = new ArrayList<Path>();
+            private final List<Long> sizes = new ArrayList<Long>();
+            private long bytes;
+
+            void add(Path source, Path target, long size) {
+                sources.add(source);
+                targets.add(target);
+                sizes.add(size);
+                bytes += size;
+            }
+
+            boolean isFull() {
+                return sources.size() >= BATCH_FILES || bytes >= BATCH_BYTES;
+            }
+
+            boolean isEmpty() {
+                return sources.isEmpty();
+            }
+
+            @Override
+            protected void compute() {
+                for (int i = 0; i < sources.size(); i++) {
+                    checkStopped();
+                    try {
+                        if (verify != null && Files.isRegularFile(sources.get(i), LinkOption.NOFOLLOW_LINKS)) {
+                            copyVerified(sources.get(i), targets.get(i));
+                        } else {
+                            Files.copy(sources.get(i), targets.get(i));
+                        }
+                        progress.advance(sizes.get(i));
+                    } catch (IOException e) {
+                        fail(e);
+                    }
+                }
+            }
+        }
+    }
+}
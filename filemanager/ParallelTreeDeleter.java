@@ -0,0 +1,197 @@
+package filemanager;
+
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.DosFileAttributeView;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Deletes a directory tree on a fork-join pool, one task per directory, so
+ * independent subtrees are removed concurrently. A directory is deleted once
+ * all of its children are gone. Links are deleted, never followed.
+ */
+final class ParallelTreeDeleter {
+    static final int DEFAULT_PARALLELISM = Integer.getInteger("filemanager.delete.parallelism",
+            Math.max(4, 2 * Runtime.getRuntime().availableProcessors()));
+
+    /** Name prefix of directories staged for a background purge. */
+    static final String STAGING_PREFIX = ".filemanager-deleting-";
+
+    private final int parallelism;
+    private final int threadPriority;
+
+    ParallelTreeDeleter() {
+        this(DEFAULT_PARALLELISM, Thread.NORM_PRIORITY);
+    }
+
+    /**
+     * @param threadPriority priority of the pool threads, background purges
+     *        use {@link Thread#MIN_PRIORITY}
+     */
+    ParallelTreeDeleter(int parallelism, int threadPriority) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("parallelism must be at least 1: " + parallelism);
+        }
+        this.parallelism = parallelism;
+        this.threadPriority = threadPriority;
+    }
+
+    /**
+     * Moves {@code target} out of sight into a hidden sibling with one atomic
+     * rename, to be deleted later with {@link #delete}. The sibling is on the
+     * same filesystem as long as {@code target} is not a mount point itself.
+     *
+     * @return the staged path
+     * @throws AtomicMoveNotSupportedException if the rename would not be a
+     *         single atomic step, the caller should delete in place instead
+     */
+    static Path stage(Path target) throws IOException {
+        Path parent = target.toAbsolutePath().getParent();
+        if (parent == null) {
+            throw new AtomicMoveNotSupportedException(target.toString(), null, "can not stage a root");
+        }
+        Path staged = parent.resolve(STAGING_PREFIX + target.getFileName() + "-" + System.nanoTime());
+        Files.move(target, staged, StandardCopyOption.ATOMIC_MOVE);
+        DosFileAttributeView dos = Files.getFileAttributeView(staged, DosFileAttributeView.class,
+                LinkOption.NOFOLLOW_LINKS);
+        if (dos != null) {
+            try {
+                dos.setHidden(true);
+            } catch (IOException e) {
+                // only cosmetic
+            }
+        }
+        return staged;
+    }
+
+    /**
+     * Returns the staged trees in {@code directory}. A purge that did not
+     * finish, e.g. because the application quit, leaves its staged tree
+     * behind; nothing else would ever delete it.
+     */
+    static List<Path> leftovers(Path directory) throws IOException {
+        List<Path> leftovers = new ArrayList<Path>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, STAGING_PREFIX + "*")) {
+            for (Path child : stream) {
+                leftovers.add(child);
+            }
+        }
+        return leftovers;
+    }
+
+    /**
+     * Deletes {@code root} and everything below it. Reports one unit of
+     * progress per deleted entry. Stops at the first failure and rethrows it;
+     * entries deleted up to then stay deleted.
+     */
+    void delete(Path root, IoProgress progress) throws IOException {
+        BasicFileAttributes attrs;
+        try {
+            attrs = Files.readAttributes(root, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        } catch (NoSuchFileException e) {
+            return;
+        }
+        if (!attrs.isDirectory()) {
+            Files.deleteIfExists(root);
+            progress.advance(1);
+            return;
+        }
+        Run run = new Run(progress);
+        ForkJoinPool pool = new ForkJoinPool(parallelism, new ForkJoinPool.ForkJoinWorkerThreadFactory() {
+            @Override
+            public ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+                ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+                thread.setPriority(threadPriority);
+                return thread;
+            }
+        }, null, false);
+        try {
+            pool.invoke(run.new DirectoryTask(root));
+        } catch (CancellationException e) {
+            if (run.failure.get() == null) {
+                throw e;
+            }
+        } finally {
+            pool.shutdown();
+        }
+        if (run.failure.get() != null) {
+            throw run.failure.get();
+        }
+    }
+
+    private static final class Run {
+        private final IoProgress progress;
+        private final AtomicReference<IOException> failure = new AtomicReference<IOException>();
+
+        Run(IoProgress progress) {
+            this.progress = progress;
+        }
+
+        private void checkStopped() {
+            if (failure.get() != null || progress.isCancelled()) {
+                throw new CancellationException();
+            }
+        }
+
+        private void fail(IOException e) {
+            failure.compareAndSet(null, e);
+            throw new CancellationException();
+        }
+
+        final class DirectoryTask extends RecursiveAction {
+            private final Path directory;
+
+            DirectoryTask(Path directory) {
+                this.directory = directory;
+            }
+
+            @Override
+            protected void compute() {
+                List<DirectoryTask> subdirectories = new ArrayList<DirectoryTask>();
+                try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+                    for (Path child : stream) {
+                        checkStopped();
+                        BasicFileAttributes attrs;
+                        try {
+                            attrs = Files.readAttributes(child, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                        } catch (NoSuchFileException e) {
+                            // another purge of the same leftover got there first
+                            continue;
+                        }
+                        if (attrs.isDirectory()) {
+                            subdirectories.add(new DirectoryTask(child));
+                        } else {
+                            Files.deleteIfExists(child);
+                            progress.advance(1);
+                        }
+                    }
+                } catch (NoSuchFileException e) {
+                    return;
+                } catch (IOException e) {
+                    fail(e);
+                }
+                invokeAll(subdirectories);
+                checkStopped();
+                try {
+                    Files.deleteIfExists(directory);
+                    progress.advance(1);
+                } catch (IOException e) {
+                    fail(e);
+                }
+            }
+        }
+    }
+}
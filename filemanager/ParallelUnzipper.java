@@ -0,0 +1,238 @@
+package filemanager;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipFile;
+
+/**
+ * Extracts zip archives through the central directory of a {@link ZipFile},
+ * inflating entries on a thread pool. Only the selected entries are read, the
+ * rest of the archive is never touched.
+ */
+final class ParallelUnzipper {
+    private static final int BUFFER_SIZE = 64 << 10;
+
+    private final int threads;
+
+    ParallelUnzipper() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    ParallelUnzipper(int threads) {
+        this.threads = threads;
+    }
+
+    /**
+     * Returns the entry names recorded in the central directory of
+     * {@code zip}, in archive order.
+     */
+    static List<String> listEntries(File zip) throws IOException {
+        List<String> names = new ArrayList<String>();
+        try (ZipFile zipFile = new ZipFile(zip)) {
+            Enumeration<? extends ZipEntry> entries = zipFile.entries();
+            while (entries.hasMoreElements()) {
+                names.add(entries.nextElement().getName());
+            }
+        }
+        return names;
+    }
+
+    /**
+     * Extracts {@code zip} into {@code destDir}. If extraction fails or is
+     * cancelled, the files and directories it created are removed again;
+     * files it overwrote stay overwritten.
+     *
+     * @param selected entry names to extract, a directory entry selects
+     *        everything below it; null extracts the whole archive
+     */
+    void extract(File zip, File destDir, Collection<String> selected, final IoProgress progress)
+            throws IOException {
+        final Path dest = destDir.getAbsoluteFile().toPath().normalize();
+        ExecutorService pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "unzip-inflater");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        List<Path> created = new ArrayList<Path>();
+        boolean complete = false;
+        try (final ZipFile zipFile = new ZipFile(zip)) {
+            List<ZipEntry> files = new ArrayList<ZipEntry>();
+            Enumeration<? extends ZipEntry> entries = zipFile.entries();
+            while (entries.hasMoreElements()) {
+                ZipEntry entry = entries.nextElement();
+                if (selected != null && !isSelected(entry.getName(), selected)) {
+                    continue;
+                }
+                Path target = resolve(dest, entry);
+                if (entry.isDirectory()) {
+                    createDirectories(target, created);
+                } else {
+                    createDirectories(target.getParent(), created);
+                    if (!Files.exists(target)) {
+                        created.add(target);
+                    }
+                    files.add(entry);
+                }
+            }
+            // biggest first keeps the pool busy until the end
+            Collections.sort(files, new Comparator<ZipEntry>() {
+                @Override
+                public int compare(ZipEntry a, ZipEntry b) {
+                    return Long.compare(b.getSize(), a.getSize());
+                }
+            });
+            List<Future<Void>> futures = new ArrayList<Future<Void>>();
+            for (final ZipEntry entry : files) {
+                final Path target = resolve(dest, entry);
+                futures.add(pool.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws IOException {
+                        extractEntry(zipFile, entry, target, progress);
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> future : futures) {
+                try {
+                    future.get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new CancellationException();
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof IOException) {
+                        throw (IOException) cause;
+                    } else if (cause instanceof RuntimeException) {
+                        throw (RuntimeException) cause;
+                    }
+                    throw new IOException(cause);
+                }
+            }
+            complete = true;
+        } finally {
+            pool.shutdownNow();
+            if (!complete) {
+                awaitTermination(pool);
+                deleteCreated(created);
+            }
+        }
+    }
+
+    /**
+     * Sum of the uncompressed sizes of the entries {@link #extract} would
+     * write, for progress reporting.
+     */
+    static long totalSize(File zip, Collection<String> selected) throws IOException {
+        long total = 0;
+        try (ZipFile zipFile = new ZipFile(zip)) {
+            Enumeration<? extends ZipEntry> entries = zipFile.entries();
+            while (entries.hasMoreElements()) {
+                ZipEntry entry = entries.nextElement();
+                if (selected == null || isSelected(entry.getName(), selected)) {
+                    total += Math.max(0, entry.getSize());
+                }
+            }
+        }
+        return total;
+    }
+
+    private static boolean isSelected(String name, Collection<String> selected) {
+        if (selected.contains(name)) {
+            return true;
+        }
+        for (String prefix : selected) {
+            if (prefix.endsWith("/") && name.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static Path resolve(Path dest, ZipEntry entry) throws ZipException {
+        Path target = dest.resolve(entry.getName()).normalize();
+        if (!target.startsWith(dest)) {
+            throw new ZipException("Entry is outside of the target directory: " + entry.getName());
+        }
+        return target;
+    }
+
+    private static void createDirectories(Path directory, List<Path> created) throws IOException {
+        List<Path> missing = new ArrayList<Path>();
+        for (Path path = directory; path != null && !Files.isDirectory(path); path = path.getParent()) {
+            missing.add(0, path);
+        }
+        Files.createDirectories(directory);
+        created.addAll(missing);
+    }
+
+    private static void awaitTermination(ExecutorService pool) {
+        // the caller may have been interrupted by the cancel, wait anyway
+        boolean interrupted = Thread.interrupted();
+        while (true) {
+            try {
+                pool.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void deleteCreated(List<Path> created) {
+        for (int i = created.size() - 1; i >= 0; i--) {
+            try {
+                Files.deleteIfExists(created.get(i));
+            } catch (IOException e) {
+                // shared with something else, leave it
+            }
+        }
+    }
+
+    private static void extractEntry(ZipFile zipFile, ZipEntry entry, Path target, IoProgress progress)
+            throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        try (InputStream in = zipFile.getInputStream(entry);
+                FileChannel out = FileChannel.open(target, StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+                        StandardOpenOption.TRUNCATE_EXISTING)) {
+            int length;
+            while ((length = in.read(buffer)) > 0) {
+                if (progress.isCancelled()) {
+                    throw new CancellationException();
+                }
+                ByteBuffer data = ByteBuffer.wrap(buffer, 0, length);
+                while (data.hasRemaining()) {
+                    out.write(data);
+                }
+                progress.advance(length);
+            }
+        }
+    }
+}
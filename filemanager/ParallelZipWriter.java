@@ -0,0 +1,434 @@
+package filemanager;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipException;
+
+/**
+ * Zip writer that deflates on a thread pool, pigz style. Each entry is cut
+ * into fixed size blocks; every block is compressed on its own with the last
+ * 32 KB of the previous block as preset dictionary and ends on a sync flush,
+ * so the blocks concatenate into one ordinary deflate stream. Blocks are
+ * written to the archive in order as they complete, and the local header is
+ * patched with the CRC and sizes afterwards, so the result is a plain zip
+ * (zip64 where needed) that {@code ZipInputStream} and {@code unzip} read.
+ * Entries that do not compress are stored, see {@link CompressionPreset}.
+ */
+final class ParallelZipWriter implements Closeable {
+    static final int BLOCK_SIZE = 128 << 10;
+
+    private static final int DICTIONARY_SIZE = 32 << 10;
+    private static final long ZIP64_THRESHOLD = 0xFFFFFFFFL;
+    // uncompressed size above which an entry gets zip64 sizes, leaves room for deflate overhead
+    private static final long ZIP64_ENTRY_THRESHOLD = 0xFF000000L;
+    private static final int UTF8_FLAG = 1 << 11;
+    private static final int METHOD_STORED = 0;
+    private static final int METHOD_DEFLATED = 8;
+
+    private static final ThreadLocal<Deflater[]> DEFLATERS = new ThreadLocal<Deflater[]>() {
+        @Override
+        protected Deflater[] initialValue() {
+            return new Deflater[10];
+        }
+    };
+
+    private final FileChannel out;
+    private final ExecutorService pool;
+    private final int window;
+    private final ArrayDeque<Piece> pending = new ArrayDeque<Piece>();
+    private final List<Entry> entries = new ArrayList<Entry>();
+    private ByteBuffer header = ByteBuffer.allocate(1024).order(ByteOrder.LITTLE_ENDIAN);
+    private int pendingBlocks;
+    private long position;
+
+    ParallelZipWriter(Path zipFile) throws IOException {
+        this(zipFile, Runtime.getRuntime().availableProcessors());
+    }
+
+    ParallelZipWriter(Path zipFile, int threads) throws IOException {
+        this.out = FileChannel.open(zipFile, StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        this.pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "zip-deflater");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.window = Math.max(4, threads * 4);
+    }
+
+    /**
+     * Adds {@code file} as entry {@code name} with the {@link CompressionPreset#BALANCED} preset.
+     */
+    void addFile(Path file, String name, IoProgress progress) throws IOException {
+        addFile(file, name, CompressionPreset.BALANCED, progress);
+    }
+
+    /**
+     * Adds {@code file} as entry {@code name}, letting {@code preset} pick
+     * STORED or a deflate level from the name and the first block.
+     */
+    void addFile(Path file, String name, CompressionPreset preset, IoProgress progress) throws IOException {
+        try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+            byte[] block = new byte[BLOCK_SIZE];
+            int length = readBlock(in, block);
+            int level = preset.chooseLevel(name, block, length);
+            Entry entry = new Entry(name, Files.getLastModifiedTime(file).toMillis(),
+                    level == CompressionPreset.STORED ? METHOD_STORED : METHOD_DEFLATED);
+            entry.zip64 = in.size() >= ZIP64_ENTRY_THRESHOLD;
+            enqueue(new Piece(entry, Piece.START, null));
+            CRC32 crc = new CRC32();
+            byte[] dictionary = null;
+            long size = 0;
+            while (true) {
+                if (progress.isCancelled()) {
+                    throw new CancellationException();
+                }
+                boolean last = length < BLOCK_SIZE;
+                crc.update(block, 0, length);
+                size += length;
+                Future<byte[]> data;
+                if (level == CompressionPreset.STORED) {
+                    data = CompletableFuture.completedFuture(last ? Arrays.copyOf(block, length) : block);
+                } else {
+                    data = pool.submit(compress(block, length, dictionary, level, last));
+                }
+                enqueue(new Piece(entry, Piece.DATA, data));
+                progress.advance(length);
+                if (last) {
+                    break;
+                }
+                if (level != CompressionPreset.STORED) {
+                    dictionary = Arrays.copyOfRange(block, BLOCK_SIZE - DICTIONARY_SIZE, BLOCK_SIZE);
+                }
+                block = new byte[BLOCK_SIZE];
+                length = readBlock(in, block);
+            }
+            entry.crc = crc.getValue();
+            entry.size = size;
+            if (!entry.zip64 && size >= ZIP64_ENTRY_THRESHOLD) {
+                throw new ZipException(file + " grew past 4 GB while zipping");
+            }
+            enqueue(new Piece(entry, Piece.END, null));
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            while (!pending.isEmpty()) {
+                drain();
+            }
+            writeCentralDirectory();
+        } finally {
+            abort();
+        }
+    }
+
+    /**
+     * Stops compression and closes the archive without finishing it.
+     */
+    void abort() throws IOException {
+        for (Piece piece : pending) {
+            if (piece.data != null) {
+                piece.data.cancel(true);
+            }
+        }
+        pending.clear();
+        pool.shutdownNow();
+        out.close();
+    }
+
+    private static int readBlock(FileChannel in, byte[] block) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(block);
+        while (buffer.hasRemaining()) {
+            if (in.read(buffer) < 0) {
+                break;
+            }
+        }
+        return buffer.position();
+    }
+
+    private static Callable<byte[]> compress(final byte[] block, final int length, final byte[] dictionary,
+            final int level, final boolean last) {
+        return new Callable<byte[]>() {
+            @Override
+            public byte[] call() {
+                Deflater[] deflaters = DEFLATERS.get();
+                Deflater deflater = deflaters[level];
+                if (deflater == null) {
+                    deflater = new Deflater(level, true);
+                    deflaters[level] = deflater;
+                } else {
+                    deflater.reset();
+                }
+                if (dictionary != null) {
+                    deflater.setDictionary(dictionary);
+                }
+                deflater.setInput(block, 0, length);
+                if (last) {
+                    deflater.finish();
+                }
+                byte[] output = new byte[Math.max(64, length + (length >> 3) + 64)];
+                int written = 0;
+                while (true) {
+                    if (written == output.length) {
+                        output = Arrays.copyOf(output, output.length * 2);
+                    }
+                    int count = deflater.deflate(output, written, output.length - written,
+                            last ? Deflater.NO_FLUSH : Deflater.SYNC_FLUSH);
+                    written += count;
+                    if (last ? deflater.finished() : written < output.length && deflater.needsInput()) {
+                        break;
+                    }
+                }
+                return written == output.length ? output : Arrays.copyOf(output, written);
+            }
+        };
+    }
+
+    private void enqueue(Piece piece) throws IOException {
+        pending.add(piece);
+        if (piece.data != null) {
+            pendingBlocks++;
+        }
+        while (pendingBlocks > window) {
+            drain();
+        }
+    }
+
+    private void drain() throws IOException {
+        Piece piece = pending.poll();
+        Entry entry = piece.entry;
+        switch (piece.kind) {
+        case Piece.START:
+            entry.offset = position;
+            writeLocalHeader(entry);
+            break;
+        case Piece.DATA:
+            pendingBlocks--;
+            byte[] data;
+            try {
+                data = piece.data.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new CancellationException();
+            } catch (ExecutionException e) {
+                throw new IOException(e.getCause());
+            }
+            write(ByteBuffer.wrap(data));
+            entry.compressedSize += data.length;
+            break;
+        case Piece.END:
+            patchLocalHeader(entry);
+            entries.add(entry);
+            break;
+        }
+    }
+
+    private void write(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += out.write(buffer);
+        }
+    }
+
+    private ByteBuffer header(int size) {
+        if (header.capacity() < size) {
+            header = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+        }
+        header.clear();
+        return header;
+    }
+
+    private void writeLocalHeader(Entry entry) throws IOException {
+        header(50 + entry.name.length);
+        header.putInt(0x04034b50);
+        header.putShort((short) (entry.zip64 ? 45 : 20));
+        header.putShort((short) UTF8_FLAG);
+        header.putShort((short) entry.method);
+        header.putInt(entry.dosTime);
+        // crc and sizes are patched in once the data is written
+        header.putInt(0);
+        header.putInt(entry.zip64 ? -1 : 0);
+        header.putInt(entry.zip64 ? -1 : 0);
+        header.putShort((short) entry.name.length);
+        header.putShort((short) (entry.zip64 ? 20 : 0));
+        header.put(entry.name);
+        if (entry.zip64) {
+            header.putShort((short) 0x0001);
+            header.putShort((short) 16);
+            header.putLong(0);
+            header.putLong(0);
+        }
+        header.flip();
+        write(header);
+    }
+
+    private void patchLocalHeader(Entry entry) throws IOException {
+        if (!entry.zip64 && entry.compressedSize >= ZIP64_THRESHOLD) {
+            throw new ZipException("Entry " + new String(entry.name, StandardCharsets.UTF_8)
+                    + " compressed past 4 GB without zip64 sizes");
+        }
+        header.clear();
+        header.putInt((int) entry.crc);
+        if (!entry.zip64) {
+            header.putInt((int) entry.compressedSize);
+            header.putInt((int) entry.size);
+        }
+        header.flip();
+        positionalWrite(header, entry.offset + 14);
+        if (entry.zip64) {
+            header.clear();
+            header.putLong(entry.size);
+            header.putLong(entry.compressedSize);
+            header.flip();
+            positionalWrite(header, entry.offset + 30 + entry.name.length + 4);
+        }
+    }
+
+    private void positionalWrite(ByteBuffer buffer, long at) throws IOException {
+        while (buffer.hasRemaining()) {
+            at += out.write(buffer, at);
+        }
+    }
+
+    private void writeCentralDirectory() throws IOException {
+        long start = position;
+        for (Entry entry : entries) {
+            boolean bigSize = entry.size >= ZIP64_THRESHOLD || entry.compressedSize >= ZIP64_THRESHOLD;
+            boolean bigOffset = entry.offset >= ZIP64_THRESHOLD;
+            int extra = (bigSize ? 16 : 0) + (bigOffset ? 8 : 0);
+            header(50 + entry.name.length + extra);
+            header.putInt(0x02014b50);
+            header.putShort((short) (extra > 0 || entry.zip64 ? 45 : 20));
+            header.putShort((short) (extra > 0 || entry.zip64 ? 45 : 20));
+            header.putShort((short) UTF8_FLAG);
+            header.putShort((short) entry.method);
+            header.putInt(entry.dosTime);
+            header.putInt((int) entry.crc);
+            header.putInt(bigSize ? -1 : (int) entry.compressedSize);
+            header.putInt(bigSize ? -1 : (int) entry.size);
+            header.putShort((short) entry.name.length);
+            header.putShort((short) (extra > 0 ? extra + 4 : 0));
+            header.putShort((short) 0);
+            header.putShort((short) 0);
+            header.putShort((short) 0);
+            header.putInt(0);
+            header.putInt(bigOffset ? -1 : (int) entry.offset);
+            header.put(entry.name);
+            if (extra > 0) {
+                header.putShort((short) 0x0001);
+                header.putShort((short) extra);
+                if (bigSize) {
+                    header.putLong(entry.size);
+                    header.putLong(entry.compressedSize);
+                }
+                if (bigOffset) {
+                    header.putLong(entry.offset);
+                }
+            }
+            header.flip();
+            write(header);
+        }
+        long end = position;
+        long size = end - start;
+        if (entries.size() >= 0xFFFF || start >= ZIP64_THRESHOLD || size >= ZIP64_THRESHOLD) {
+            header.clear();
+            header.putInt(0x06064b50);
+            header.putLong(44);
+            header.putShort((short) 45);
+            header.putShort((short) 45);
+            header.putInt(0);
+            header.putInt(0);
+            header.putLong(entries.size());
+            header.putLong(entries.size());
+            header.putLong(size);
+            header.putLong(start);
+            header.putInt(0x07064b50);
+            header.putInt(0);
+            header.putLong(end);
+            header.putInt(1);
+            header.flip();
+            write(header);
+        }
+        header.clear();
+        header.putInt(0x06054b50);
+        header.putShort((short) 0);
+        header.putShort((short) 0);
+        header.putShort((short) Math.min(entries.size(), 0xFFFF));
+        header.putShort((short) Math.min(entries.size(), 0xFFFF));
+        header.putInt(size >= ZIP64_THRESHOLD ? -1 : (int) size);
+        header.putInt(start >= ZIP64_THRESHOLD ? -1 : (int) start);
+        header.putShort((short) 0);
+        header.flip();
+        write(header);
+    }
+
+    private static int dosTime(long millis) {
+        LocalDateTime time = LocalDateTime.ofInstant(Instant.ofEpochMilli(millis), ZoneId.systemDefault());
+        if (time.getYear() < 1980) {
+            return (1 << 21) | (1 << 16);
+        }
+        return (time.getYear() - 1980) << 25 | time.getMonthValue() << 21 | time.getDayOfMonth() << 16
+                | time.getHour() << 11 | time.getMinute() << 5 | time.getSecond() >> 1;
+    }
+
+    private static final class Entry {
+        final byte[] name;
+        final int dosTime;
+        final int method;
+        boolean zip64;
+        long offset;
+        long crc;
+        long size;
+        long compressedSize;
+
+        Entry(String name, long modified, int method) {
+            this.name = name.getBytes(StandardCharsets.UTF_8);
+            this.dosTime = dosTime(modified);
+            this.method = method;
+        }
+    }
+
+    private static final class Piece {
+        static final int START = 0;
+        static final int DATA = 1;
+        static final int END = 2;
+
+        final Entry entry;
+        final int kind;
+        final Future<byte[]> data;
+
+        Piece(Entry entry, int kind, Future<byte[]> data) {
+            this.entry = entry;
+            this.kind = kind;
+            this.data = data;
+        }
+    }
+}
@@ -0,0 +1,183 @@
+package filemanager;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import javax.swing.Icon;
+import javax.swing.ImageIcon;
+import javax.swing.SwingUtilities;
+import javax.swing.UIManager;
+import javax.swing.filechooser.FileSystemView;
+
+/**
+ * Bounded cache in front of {@link FileSystemView#getSystemIcon(File)} and
+ * {@link FileSystemView#getSystemDisplayName(File)}. Icons are shared per
+ * extension unless the platform gives the file an icon of its own. Misses
+ * return a placeholder and are resolved on a background thread; listeners are
+ * told on the EDT which keys changed so they can repaint just those rows.
+ */
+final class SystemIconCache {
+
+    interface Listener {
+        /**
+         * Called on the EDT with the icon keys ({@link #iconKey}) and files
+         * whose icon or display name was resolved.
+         */
+        void systemInfoResolved(Set<Object> keys);
+    }
+
+    private static final String DIRECTORY_KEY = "<dir>";
+    private static final String NO_EXTENSION_KEY = "<file>";
+    private static final String[] UNIQUE_ICON_EXTENSIONS = { "exe", "lnk", "ico", "cur", "ani", "url", "scr", "cpl",
+            "msc", "app" };
+
+    private static final Icon NO_ICON = new ImageIcon();
+
+    private final FileSystemView fileSystemView;
+    private final Map<String, Icon> icons;
+    private final Map<File, String> names;
+    private final Map<Object, File> pending = new LinkedHashMap<Object, File>();
+    private final List<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+    private final ExecutorService resolver = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "system-icon-resolver");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    SystemIconCache(FileSystemView fileSystemView, int iconCapacity, int nameCapacity) {
+        this.fileSystemView = fileSystemView;
+        this.icons = lru(iconCapacity);
+        this.names = lru(nameCapacity);
+    }
+
+    void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    String iconKey(File file, boolean directory) {
+        if (file.getParentFile() == null || !fileSystemView.isFileSystem(file)) {
+            return file.getPath();
+        }
+        String name = file.getName();
+        int dot = name.lastIndexOf('.');
+        String extension = dot > 0 ? name.substring(dot + 1).toLowerCase(Locale.ROOT) : null;
+        if (extension != null) {
+            for (String unique : UNIQUE_ICON_EXTENSIONS) {
+                if (unique.equals(extension)) {
+                    return file.getPath();
+                }
+            }
+        }
+        if (directory) {
+            return DIRECTORY_KEY;
+        }
+        return extension == null ? NO_EXTENSION_KEY : "." + extension;
+    }
+
+    Icon getIcon(File file, boolean directory) {
+        String key = iconKey(file, directory);
+        synchronized (this) {
+            Icon icon = icons.get(key);
+            if (icon == NO_ICON) {
+                return null;
+            } else if (icon != null) {
+                return icon;
+            }
+            request(key, file);
+        }
+        return UIManager.getIcon(directory ? "FileView.directoryIcon" : "FileView.fileIcon");
+    }
+
+    String getDisplayName(File file) {
+        synchronized (this) {
+            String name = names.get(file);
+            if (name != null) {
+                return name;
+            }
+            request(file, file);
+        }
+        String name = file.getName();
+        return name.isEmpty() ? file.getPath() : name;
+    }
+
+    private void request(Object key, File file) {
+        boolean idle = pending.isEmpty();
+        if (pending.containsKey(key)) {
+            return;
+        }
+        pending.put(key, file);
+        if (idle) {
+            resolver.execute(new Runnable() {
+                @Override
+                public void run() {
+                    resolvePending();
+                }
+            });
+        }
+    }
+
+    private void resolvePending() {
+        while (true) {
+            List<Map.Entry<Object, File>> batch;
+            synchronized (this) {
+                if (pending.isEmpty()) {
+                    return;
+                }
+                batch = new ArrayList<Map.Entry<Object, File>>(pending.entrySet());
+            }
+            final Set<Object> resolved = new HashSet<Object>();
+            for (Map.Entry<Object, File> entry : batch) {
+                Object key = entry.getKey();
+                File file = entry.getValue();
+                if (key instanceof File) {
+                    String name = fileSystemView.getSystemDisplayName(file);
+                    synchronized (this) {
+                        names.put(file, name == null || name.isEmpty() ? file.getPath() : name);
+                        pending.remove(key);
+                    }
+                } else {
+                    Icon icon = fileSystemView.getSystemIcon(file);
+                    synchronized (this) {
+                        icons.put((String) key, icon == null ? NO_ICON : icon);
+                        pending.remove(key);
+                    }
+                }
+                resolved.add(key);
+            }
+            SwingUtilities.invokeLater(new Runnable() {
+                @Override
+                public void run() {
+                    for (Listener listener : listeners) {
+                        listener.systemInfoResolved(resolved);
+                    }
+                }
+            });
+        }
+    }
+
+    private static <K, V> Map<K, V> lru(final int capacity) {
+        return new LinkedHashMap<K, V>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+}